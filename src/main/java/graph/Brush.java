@@ -0,0 +1,160 @@
+package graph;
+
+import java.util.Arrays;
+
+import graph.SkeletonImage.ByteSkeletonImage;
+
+/**
+ * Draws lines into the skeleton for manual corrections, with integer Bresenham steps and a round tip of
+ * configurable width. 8-bit images are written directly into their byte array (one span per row of the tip),
+ * all others through {@link SkeletonImage#set(int, int, float)}. The bounding box of all changed pixels is
+ * recorded, so that only this part has to be analyzed again.
+ */
+public class Brush
+{
+	int width;
+	boolean erase;
+
+	// for each row of the tip (dy = lo ... hi) the first and last column (dx)
+	int lo, hi;
+	int[] spanMin, spanMax;
+
+	// bounding box of all pixels drawn since the last reset (empty if minX > maxX)
+	int dirtyMinX, dirtyMinY, dirtyMaxX, dirtyMaxY;
+
+	public Brush()
+	{
+		setWidth( 1 );
+		resetDirty();
+	}
+
+	public int getWidth() { return width; }
+	public boolean isErase() { return erase; }
+
+	/**
+	 * @param erase - if true, pixels are set to 0 instead of 255
+	 */
+	public void setErase( final boolean erase ) { this.erase = erase; }
+
+	/**
+	 * @param width - the diameter of the tip in pixels (at least 1)
+	 */
+	public void setWidth( final int width )
+	{
+		this.width = Math.max( 1, width );
+
+		// the tip covers lo ... hi in x and y, its center is between two pixels for even widths
+		this.lo = -( this.width - 1 ) / 2;
+		this.hi = this.width / 2;
+
+		final double center = ( lo + hi ) / 2.0;
+		final double r2 = ( this.width / 2.0 ) * ( this.width / 2.0 );
+
+		this.spanMin = new int[ this.width ];
+		this.spanMax = new int[ this.width ];
+
+		for ( int dy = lo; dy <= hi; ++dy )
+		{
+			spanMin[ dy - lo ] = hi;
+			spanMax[ dy - lo ] = lo;
+
+			for ( int dx = lo; dx <= hi; ++dx )
+			{
+				final double ddx = dx - center;
+				final double ddy = dy - center;
+
+				// for small widths the square is the closest to round
+				if ( this.width <= 2 || ddx * ddx + ddy * ddy <= r2 )
+				{
+					spanMin[ dy - lo ] = Math.min( spanMin[ dy - lo ], dx );
+					spanMax[ dy - lo ] = Math.max( spanMax[ dy - lo ], dx );
+				}
+			}
+		}
+	}
+
+	/**
+	 * Draws a line from (x0,y0) to (x1,y1), both inclusive.
+	 */
+	public void line( final SkeletonImage img, int x0, int y0, final int x1, final int y1 )
+	{
+		final int dx = Math.abs( x1 - x0 );
+		final int dy = -Math.abs( y1 - y0 );
+		final int sx = x0 < x1 ? 1 : -1;
+		final int sy = y0 < y1 ? 1 : -1;
+
+		int err = dx + dy;
+
+		while ( true )
+		{
+			stamp( img, x0, y0 );
+
+			if ( x0 == x1 && y0 == y1 )
+				break;
+
+			final int e2 = 2 * err;
+
+			if ( e2 >= dy )
+			{
+				err += dy;
+				x0 += sx;
+			}
+
+			if ( e2 <= dx )
+			{
+				err += dx;
+				y0 += sy;
+			}
+		}
+	}
+
+	/**
+	 * Draws the tip once, centered at (x,y).
+	 */
+	public void stamp( final SkeletonImage img, final int x, final int y )
+	{
+		final int w = img.getWidth();
+		final int h = img.getHeight();
+
+		final byte[] pixels = img instanceof ByteSkeletonImage ? ( (ByteSkeletonImage)img ).getPixels() : null;
+		final byte value = erase ? 0 : (byte)255;
+
+		for ( int dy = lo; dy <= hi; ++dy )
+		{
+			final int yi = y + dy;
+
+			if ( yi < 0 || yi >= h )
+				continue;
+
+			final int xs = Math.max( 0, x + spanMin[ dy - lo ] );
+			final int xe = Math.min( w - 1, x + spanMax[ dy - lo ] );
+
+			if ( xs > xe )
+				continue;
+
+			if ( pixels != null )
+				Arrays.fill( pixels, xs + yi * w, xe + yi * w + 1, value );
+			else
+				for ( int xi = xs; xi <= xe; ++xi )
+					img.set( xi, yi, erase ? 0 : 255 );
+
+			dirtyMinX = Math.min( dirtyMinX, xs );
+			dirtyMaxX = Math.max( dirtyMaxX, xe );
+			dirtyMinY = Math.min( dirtyMinY, yi );
+			dirtyMaxY = Math.max( dirtyMaxY, yi );
+		}
+	}
+
+	public boolean isDirty() { return dirtyMinX <= dirtyMaxX; }
+
+	public int getDirtyMinX() { return dirtyMinX; }
+	public int getDirtyMinY() { return dirtyMinY; }
+	public int getDirtyMaxX() { return dirtyMaxX; }
+	public int getDirtyMaxY() { return dirtyMaxY; }
+
+	public void resetDirty()
+	{
+		dirtyMinX = dirtyMinY = Integer.MAX_VALUE;
+		dirtyMaxX = dirtyMaxY = -1;
+	}
+}
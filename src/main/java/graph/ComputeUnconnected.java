@@ -1,8 +1,12 @@
 package graph;
 
 import java.io.File;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Collection;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import ij.CompositeImage;
 import ij.IJ;
@@ -10,34 +14,47 @@ import ij.ImageJ;
 import ij.ImagePlus;
 import ij.WindowManager;
 import ij.gui.GenericDialog;
-import ij.gui.OvalRoi;
-import ij.gui.Roi;
 import ij.plugin.PlugIn;
-import ij.plugin.frame.RoiManager;
-import mpicbg.imglib.container.array.ArrayContainerFactory;
-import mpicbg.imglib.cursor.LocalizableByDimCursor;
-import mpicbg.imglib.cursor.LocalizableCursor;
-import mpicbg.imglib.cursor.special.LocalNeighborhoodCursor;
-import mpicbg.imglib.image.Image;
-import mpicbg.imglib.image.ImageFactory;
-import mpicbg.imglib.image.display.imagej.ImageJFunctions;
-import mpicbg.imglib.io.ImageOpener;
-import mpicbg.imglib.outofbounds.OutOfBoundsStrategyValueFactory;
-import mpicbg.imglib.type.numeric.RealType;
-import mpicbg.imglib.type.numeric.integer.UnsignedByteType;
-import mpicbg.imglib.type.numeric.real.FloatType;
-import mpicbg.imglib.util.Util;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
 import net.imglib2.KDTree;
 import net.imglib2.Localizable;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.RealLocalizable;
-import net.imglib2.neighborsearch.KNearestNeighborSearch;
-import net.imglib2.neighborsearch.KNearestNeighborSearchOnKDTree;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.ByteArray;
+import net.imglib2.img.display.imagej.ImageJFunctions;
 import net.imglib2.neighborsearch.NearestNeighborSearch;
-import net.imglib2.neighborsearch.NearestNeighborSearchOnKDTree;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.util.Util;
 
 public class ComputeUnconnected implements PlugIn
 {
 	public static int defaulChannelChoice = 1;
+
+	// how far (in pixels) from a click or a tracked point the closest path is searched
+	public static double closestPointRadius = 5;
+
+	// find the closest path with the nearest pixel map of the graph (one lookup), or by searching the pixels around
+	public static boolean useNearestPixelMap = true;
+
+	// remove redundant pixels with parallel subfield passes (deterministic), or with the original
+	// sequential raster scan whose result depends on the scan order (for regression comparison)
+	boolean parallelThinning = true;
+
+	// height of the bands of rows that are processed as one task by the parallel thinning
+	final static int THINNING_BAND_HEIGHT = 64;
+
+	// one reusable path tracer per thread
+	final ThreadLocal< PathTracer > tracers = ThreadLocal.withInitial( PathTracer::new );
+
+	public void setParallelThinning( final boolean parallelThinning ) { this.parallelThinning = parallelThinning; }
+	public boolean getParallelThinning() { return parallelThinning; }
 	
 	@Override
 	public void run( String s )
@@ -81,10 +98,10 @@ public class ComputeUnconnected implements PlugIn
 	
 	public void loadFileAndStart( final String fileName )
 	{
-		Image< FloatType > tmp = open( fileName );
-		tmp.getDisplay().setMinMax();
-		
-		final ImagePlus imp = ImageJFunctions.copyToImagePlus( tmp );
+		final ImagePlus imp = open( fileName );
+
+		if ( imp == null )
+			return;
 		
 		if ( imp.getNSlices() > 1 && imp.getNFrames() == 1 )
 			imp.setStack( imp.getImageStack(), 1, 1, imp.getNSlices() );
@@ -98,157 +115,543 @@ public class ComputeUnconnected implements PlugIn
 		new MouseEventHandler< T >( imp, channel, this );
 	}
 	
-	public < T extends RealType< T > > ArrayList< Node > analyzeNodes( final Image< T > img, final int frame )
+	public < T extends RealType< T > > Graph analyzeNodes( final RandomAccessibleInterval< T > img, final int frame )
 	{
 		removeRedundantPixels( img, frame );
 		
-		final ArrayList< Node > nodes = findAllNodes( img, frame );
+		final Graph nodes = findAllNodes( img, frame );
+
+		final int countFailed = traceEdges( SkeletonImage.wrap( img ), nodes );
+
+		if ( countFailed > 0 )
+			IJ.log( "Could not trace " + countFailed + " edges in frame " + frame + ", they are found by following the pixels" );
 		
 		//printNodeStatistics( nodes );
-		//drawNodes( nodes, img.getDimensions() );
+		//drawNodes( nodes, Intervals.dimensionsAsIntArray( img ) );
 		
 		return nodes;
 	}
 	
-	public Node findClosest3WayNode( final KDTree< Node > nodes, final RealLocalizable location )
+	/**
+	 * Re-analyzes only a rectangle of the image (e.g. after painting into it) and updates the graph, instead of
+	 * {@link #analyzeNodes(RandomAccessibleInterval, int)} on the whole image. The rectangle is thinned (plus a
+	 * margin, in subfields or with a raster scan like the whole image, see {@link #setParallelThinning(boolean)}), the nodes and edges around it are removed from the graph, the nodes are detected again and all
+	 * edges that are missing are traced from the new nodes and the ones that lost an edge.
+	 * 
+	 * @param img
+	 * @param frame - only used for logging
+	 * @param nodes - the graph of the whole image, it is updated
+	 * @param minX, minY, maxX, maxY - the rectangle that changed (inclusive)
+	 */
+	public < T extends RealType< T > > void analyzeRegion( final RandomAccessibleInterval< T > img, final int frame, final Graph nodes, final int minX, final int minY, final int maxX, final int maxY )
 	{
-		if ( nodes == null )
-			return null;
-		
-		NearestNeighborSearch< Node > search = new NearestNeighborSearchOnKDTree<Node>( nodes );
-		search.search( location );
-		
-		if ( search.getSampler().get().numEdges == 3 )
+		final SkeletonImage skeleton = SkeletonImage.wrap( img );
+
+		final int width = skeleton.getWidth();
+		final int height = skeleton.getHeight();
+
+		// thinning may change the pixels next to the changed ones, the special case moves a pixel by one
+		final int tx0 = Math.max( 0, minX - 2 ), ty0 = Math.max( 0, minY - 2 );
+		final int tx1 = Math.min( width - 1, maxX + 2 ), ty1 = Math.min( height - 1, maxY + 2 );
+
+		removeSpecialCase( skeleton, tx0, ty0, tx1, ty1 );
+
+		int countRemoved = 0, removedInRound;
+
+		// the same kind of thinning as for the whole image, so that 'r' gives the same skeleton
+		if ( parallelThinning )
 		{
-			return search.getSampler().get();
+			do
+			{
+				removedInRound = 0;
+
+				for ( int subfield = 0; subfield < 4; ++subfield )
+					removedInRound += removeRedundantPixels( skeleton, subfield % 2, subfield / 2, tx0, tx1 + 1, ty0, ty1 + 1 );
+
+				countRemoved += removedInRound;
+			}
+			while ( removedInRound > 0 );
 		}
 		else
 		{
-			for ( int i = 5; i < 100; i += 10 )
+			countRemoved = removeRedundantPixelsSequential( skeleton, tx0, ty0, tx1, ty1 );
+		}
+
+		if ( countRemoved > 0 )
+			IJ.log( "Removed " + countRemoved + " redundant pixels in frame " + frame );
+
+		// every pixel whose neighborhood changed might have become a node (or is not one anymore)
+		final int nx0 = Math.max( 0, tx0 - 2 ), ny0 = Math.max( 0, ty0 - 2 );
+		final int nx1 = Math.min( width - 1, tx1 + 2 ), ny1 = Math.min( height - 1, ty1 + 2 );
+
+		// the nodes outside that lose an edge have to be traced again
+		final ArrayList< Node > affected = new ArrayList< Node >();
+
+		for ( int y = ny0; y <= ny1; ++y )
+			for ( int x = nx0; x <= nx1; ++x )
 			{
-				KNearestNeighborSearch< Node > s2 = new KNearestNeighborSearchOnKDTree<Node>( nodes, i );
-				s2.search( location );
-				
-				for ( int n = 0; n <= i; ++n )
+				final Edge edge = nodes.getEdge( x, y );
+
+				if ( edge != null )
+				{
+					affected.add( edge.node1 );
+					affected.add( edge.node2 );
+					nodes.removeEdge( edge );
+				}
+
+				final Node node = nodes.getNode( x, y );
+
+				if ( node != null )
 				{
-					Node node = s2.getSampler( n ).get();
-					if ( node.numEdges == 3 )
-						return node;
+					affected.addAll( node.connections );
+					nodes.remove( node );
 				}
 			}
+
+		final int numNodes = nodes.numNodes();
+		final int countIsolated = findNodes( skeleton, nodes, nx0, ny0, nx1, ny1 );
+
+		if ( countIsolated > 0 )
+			IJ.log( "Removed " + countIsolated + " isolated pixels in frame " + frame );
+
+		// the new nodes were appended
+		for ( int i = numNodes; i < nodes.numNodes(); ++i )
+			affected.add( nodes.getNodes().get( i ) );
+
+		// some of them were removed again as part of the rectangle
+		for ( int i = affected.size() - 1; i >= 0; --i )
+			if ( affected.get( i ).id < 0 )
+				affected.remove( i );
+
+		final int countFailed = traceEdges( skeleton, nodes, affected );
+
+		if ( countFailed > 0 )
+			IJ.log( "Could not trace " + countFailed + " edges in frame " + frame + ", they are found by following the pixels" );
+
+		// painted paths without a node do not change the graph
+		nodes.pixelsChanged();
+	}
+
+	/**
+	 * @param nodes
+	 * @param location
+	 * @return - the closest node with exactly 3 edges, or null if there is none
+	 */
+	public Node findClosest3WayNode( final Graph nodes, final RealLocalizable location )
+	{
+		return findClosest3WayNode( nodes, location, Double.MAX_VALUE );
+	}
+
+	/**
+	 * @param nodes
+	 * @param location
+	 * @param maxDistance
+	 * @return - the closest node with exactly 3 edges within maxDistance, or null if there is none
+	 */
+	public Node findClosest3WayNode( final Graph nodes, final RealLocalizable location, final double maxDistance )
+	{
+		if ( nodes == null )
 			return null;
+
+		return nodes.getNodeTree().findClosest( location, 3, 3, maxDistance );
+	}
+
+	/**
+	 * Wraps one frame of the segmentation channel directly on top of the pixels of the {@link ImagePlus},
+	 * without changing the displayed position.
+	 * 
+	 * @param imp
+	 * @param channel - the segmentation channel (0-based) or -1 if there is only one channel
+	 * @param frame - the frame (1-based)
+	 * @return
+	 */
+	public static < T extends RealType< T > > RandomAccessibleInterval< T > wrapFrame( final ImagePlus imp, final int channel, final int frame )
+	{
+		if ( imp.getNChannels() == 1 && imp.getNFrames() == 1 )
+			return wrap( imp.getProcessor() );
+		else
+			return wrap( imp.getStack().getProcessor( imp.getStackIndex( channel + 1, 1, frame ) ) );
+	}
+
+	/**
+	 * Wraps the pixel array of an {@link ImageProcessor} as {@link ArrayImg} (no copy), 8-bit images
+	 * are then accessed directly through their byte array by the {@link SkeletonImage}.
+	 * 
+	 * @param ip
+	 * @return
+	 */
+	@SuppressWarnings( "unchecked" )
+	public static < T extends RealType< T > > RandomAccessibleInterval< T > wrap( final ImageProcessor ip )
+	{
+		final long w = ip.getWidth();
+		final long h = ip.getHeight();
+
+		final Object img;
+
+		if ( ip instanceof ByteProcessor )
+			img = ArrayImgs.unsignedBytes( (byte[])ip.getPixels(), w, h );
+		else if ( ip instanceof ShortProcessor )
+			img = ArrayImgs.unsignedShorts( (short[])ip.getPixels(), w, h );
+		else if ( ip instanceof FloatProcessor )
+			img = ArrayImgs.floats( (float[])ip.getPixels(), w, h );
+		else
+			throw new IllegalArgumentException( "Unsupported image type: " + ip.getClass().getSimpleName() );
+
+		return (RandomAccessibleInterval< T >)img;
+	}
+
+	/**
+	 * Analyzes all frames and removes their dead ends in parallel, one task per frame. Each frame is changed
+	 * while holding its lock and its new graph is cached. The display is not touched, the caller has to update
+	 * it once it is done.
+	 * 
+	 * @param frames - the frames of the displayed image
+	 * @param numThreads
+	 * @return - the graph of each frame after removing the dead ends
+	 */
+	public < T extends RealType< T > > Graph[] removeAllDeadEnds( final FrameGraphProvider< T > frames, final int numThreads )
+	{
+		return analyzeAllFrames( frames.imp, frames.channel, true, numThreads, frames );
+	}
+
+	/**
+	 * Analyzes all frames in parallel (removes redundant pixels and finds all nodes), one task per frame, and
+	 * optionally removes all dead ends. The display is not touched, the caller has to update it once it is done.
+	 * 
+	 * @param imp
+	 * @param channel - the segmentation channel (0-based) or -1 if there is only one channel
+	 * @param removeDeadEnds
+	 * @param numThreads
+	 * @return - the graph of each frame
+	 */
+	public < T extends RealType< T > > Graph[] analyzeAllFrames( final ImagePlus imp, final int channel, final boolean removeDeadEnds, final int numThreads )
+	{
+		return analyzeAllFrames( imp, channel, removeDeadEnds, numThreads, null );
+	}
+
+	/**
+	 * @param imp
+	 * @param channel - the segmentation channel (0-based) or -1 if there is only one channel
+	 * @param removeDeadEnds
+	 * @param numThreads
+	 * @param frames - if not null, each frame is analyzed while holding its lock and the graph is cached
+	 * @return - the graph of each frame
+	 */
+	protected < T extends RealType< T > > Graph[] analyzeAllFrames( final ImagePlus imp, final int channel, final boolean removeDeadEnds, final int numThreads, final FrameGraphProvider< T > frames )
+	{
+		final int numFrames = imp.getNFrames();
+		final Graph[] graphs = new Graph[ numFrames ];
+		final AtomicInteger progress = new AtomicInteger();
+
+		final ForkJoinPool pool = new ForkJoinPool( numThreads );
+
+		try
+		{
+			final ArrayList< ForkJoinTask< ? > > tasks = new ArrayList< ForkJoinTask< ? > >();
+
+			for ( int t = 1; t <= numFrames; ++t )
+			{
+				final int frame = t;
+
+				tasks.add( pool.submit( () ->
+				{
+					final RandomAccessibleInterval< T > img = wrapFrame( imp, channel, frame );
+
+					if ( frames == null )
+					{
+						graphs[ frame - 1 ] = analyzeFrame( img, frame, removeDeadEnds );
+					}
+					else
+					{
+						// the display may analyze or prefetch the same frame meanwhile
+						synchronized ( frames.getLock( frame ) )
+						{
+							graphs[ frame - 1 ] = analyzeFrame( img, frame, removeDeadEnds );
+							frames.getFrameCache().put( frame, graphs[ frame - 1 ], SkeletonImage.wrap( img ) );
+						}
+					}
+
+					IJ.showProgress( progress.incrementAndGet(), numFrames );
+				} ) );
+			}
+
+			for ( final ForkJoinTask< ? > task : tasks )
+				task.join();
+		}
+		finally
+		{
+			pool.shutdown();
 		}
+
+		return graphs;
+	}
+
+	protected < T extends RealType< T > > Graph analyzeFrame( final RandomAccessibleInterval< T > img, final int frame, final boolean removeDeadEnds )
+	{
+		final Graph nodes = analyzeNodes( img, frame );
+
+		if ( removeDeadEnds )
+			removeAllDeadEnds( img, frame, nodes );
+
+		return nodes;
 	}
 
-	public < T extends RealType< T > > void removeAllDeadEnds( final Image< T > img, final ImagePlus imp, final ArrayList< Node > nodes )
+	public < T extends RealType< T > > void removeAllDeadEnds( final RandomAccessibleInterval< T > img, final int frame, final Graph nodes )
+	{
+		removeAllDeadEnds( img, frame, nodes, false );
+	}
+
+	/**
+	 * Removes all dead ends and the paths that lead to the next node. Every dead end is taken from a worklist
+	 * and traced exactly once, so the total work is linear in the number of skeleton pixels.
+	 * 
+	 * @param img
+	 * @param frame - only used for logging
+	 * @param nodes
+	 * @param iterative - if true, nodes that become dead ends because a path was removed are pruned as well
+	 * (until no dead ends are left), otherwise only the dead ends that exist when calling this method are removed
+	 */
+	public < T extends RealType< T > > void removeAllDeadEnds( final RandomAccessibleInterval< T > img, final int frame, final Graph nodes, final boolean iterative )
 	{
-		// create a list of dead ends
-		final ArrayList< int[] > deadEnds = new ArrayList< int[] >();
+		// the worklist of dead ends, stored as locations because re-analyzing the image replaces all nodes
+		final ArrayDeque< int[] > deadEnds = new ArrayDeque< int[] >();
 		
 		for ( final Node node : nodes )
 			if ( node.numEdges == 1 )
-				deadEnds.add( node.getPosition().clone() );
+				deadEnds.add( node.getPosition() );
 		
-		boolean removedDeadEnd = false;
-		
-		do
+		final SkeletonImage skeleton = SkeletonImage.wrap( img );
+
+		while ( !deadEnds.isEmpty() )
 		{
-			removedDeadEnd = false;
+			final int[] location = deadEnds.poll();
+			Node node = isNode( location, nodes );
+
+			// is it still a dead end? (it is gone if its path ended at another dead end)
+			if ( node == null || node.numEdges != 1 )
+				continue;
+
+			// go from the dead end to the next node (the traced edge if there is one)
+			PartialSegment p;
+
+			if ( node.edges.size() == 1 )
+				p = nodes.toPartialSegment( node.edges.get( 0 ), node );
+			else
+				p = findPathToNextNode( skeleton, location, nodes, 0, true );
 			
-			for ( int i = 0; i < nodes.size(); ++i )
+			if ( p == null )
 			{
-				final Node node = nodes.get( i );
+				nodes.replaceWith( analyzeNodes( img, frame ) );
+				
+				// found a bug in the graph
+				IJ.log( "There is a bug in the graph starting from " + Util.printCoordinates( location ) + ", re-analyzing the image" );
+				
+				node = isNode( location, nodes );
+
+				if ( node == null || node.numEdges != 1 )
+					continue;
 
-				// is it a dead end?
-				if ( node.numEdges == 1 && contains( node.getPosition(), deadEnds ) )
+				p = findPathToNextNode( skeleton, location, nodes, 0, true );
+
+				if ( p == null )
 				{
-					LocalizableByDimCursor< T > randomAccess = img.createLocalizableByDimCursor( new OutOfBoundsStrategyValueFactory< T >() );
-					randomAccess.setPosition( node.getPosition() );
-					
-					// go from the dead end to the next node
-					PartialSegment p = findPathToNextNode( randomAccess, nodes, 0, true );
-					
-					if ( p == null )
-					{
-						nodes.clear();
-						nodes.addAll( analyzeNodes( img, imp.getFrame() ) );
-						imp.updateAndDraw();
-						
-						// found a bug in the graph
-						IJ.log( "There is a bug in the graph starting from " + Util.printCoordinates( node.getPosition() ) + ", re-analyzing the image" );
-						
-						randomAccess = img.createLocalizableByDimCursor( new OutOfBoundsStrategyValueFactory< T >() );
-						randomAccess.setPosition( node.getPosition() );
-						p = findPathToNextNode( randomAccess, nodes, 0, true );
-					}
-					
-					// delete all pixels on the path
-					for ( final int[] location : p.getPoints() )
-					{
-						randomAccess.setPosition( location );
-						randomAccess.getType().setZero();
-					}
-					
-					// reduce/remove the node we started with
-					reduceNode( node, randomAccess, nodes );
-					
-					// and the one we end up at
-					reduceNode( p.getNode1(), randomAccess, nodes );
-					
-					removedDeadEnd = true;
-					break;
+					IJ.log( "Could not remove the dead end at " + Util.printCoordinates( location ) + ", skipping it" );
+					continue;
 				}
-			}		
-		} 
-		while ( removedDeadEnd );
+			}
+			
+			// delete all pixels on the path
+			removePath( p, skeleton, nodes );
+			
+			// reduce/remove the node we started with
+			reduceNode( node, skeleton, nodes );
+			
+			// and the one we end up at
+			final Node next = p.getNode1();
+
+			if ( next == null || next == node )
+				continue;
+
+			reduceNode( next, skeleton, nodes );
+
+			// did it become a new dead end?
+			if ( iterative && next.numEdges == 1 && isNode( next.getPosition(), nodes ) == next )
+				deadEnds.add( next.getPosition() );
+		}
 	}
 	
-	public boolean contains( final int[] location, final ArrayList< int[] > locations )
+	/**
+	 * Deletes all pixels of a path and the edges they belong to.
+	 * 
+	 * @param points
+	 * @param img
+	 * @param nodes
+	 */
+	public void removePath( final PartialSegment path, final SkeletonImage img, final Graph nodes )
 	{
-		for ( final int[] l : locations )
-			if ( isIdentical( location, l ) )
-				return true;
-		
-		return false;
+		for ( int i = 0; i < path.size(); ++i )
+		{
+			final Edge edge = nodes.getEdge( path.getX( i ), path.getY( i ) );
+
+			if ( edge != null )
+				nodes.removeEdge( edge );
+
+			img.clear( path.getX( i ), path.getY( i ) );
+		}
+
+		// the path may not have been traced
+		nodes.pixelsChanged();
 	}
-	
+
+	/**
+	 * Deletes a segment from the image and updates the graph locally, so it is the same as after re-analyzing
+	 * the image: both nodes have one connection less, dead ends are removed and a node that is left with two
+	 * edges becomes part of the path that joins them.
+	 * 
+	 * @param segment
+	 * @param img
+	 * @param nodes
+	 */
+	public void deleteSegment( final Segment segment, final SkeletonImage img, final Graph nodes )
+	{
+		final Node node1 = segment.getNode1();
+		final Node node2 = segment.getNode2();
+
+		// a deleted segment has at least one pixel, a direct edge between the same nodes is kept
+		removePath( segment, img, nodes );
+
+		reduceNode( node1, img, nodes );
+		reduceNode( node2, img, nodes );
+
+		updateNode( node1, img, nodes );
+
+		if ( node2 != node1 )
+			updateNode( node2, img, nodes );
+	}
+
+	/**
+	 * Checks if a node that lost a connection is still a node: an isolated pixel is deleted, a node with two
+	 * edges is merged into one edge.
+	 * 
+	 * @param node
+	 * @param img
+	 * @param nodes
+	 */
+	protected void updateNode( final Node node, final SkeletonImage img, final Graph nodes )
+	{
+		// it was removed as dead end
+		if ( isNode( node.getPosition(), nodes ) != node )
+			return;
+
+		if ( img.neighborhood( node.location[ 0 ], node.location[ 1 ] ) == 0 )
+		{
+			// nothing is connected anymore
+			nodes.remove( node );
+			img.clear( node.location[ 0 ], node.location[ 1 ] );
+		}
+		else if ( node.numEdges == 2 && node.edges.size() == 2 )
+		{
+			mergeEdges( node, img, nodes );
+		}
+	}
+
+	/**
+	 * Joins the two edges of a node into one edge and removes the node from the graph. The pixel of the node
+	 * becomes part of the new edge, unless it is redundant (a corner, see {@link Neighborhood#isRemovable(int)}),
+	 * then it is deleted like {@link #removeRedundantPixels(RandomAccessibleInterval, int)} would do.
+	 * 
+	 * @param node - a node with exactly two edges
+	 * @param img
+	 * @param nodes
+	 * @return - the new edge or null if the two edges are one loop
+	 */
+	public Edge mergeEdges( final Node node, final SkeletonImage img, final Graph nodes )
+	{
+		final Edge e1 = node.edges.get( 0 );
+		final Edge e2 = node.edges.get( 1 );
+
+		if ( e1 == e2 )
+			return null;
+
+		final Node n1 = e1.getOtherNode( node );
+		final Node n2 = e2.getOtherNode( node );
+
+		final int x = node.location[ 0 ];
+		final int y = node.location[ 1 ];
+
+		// also removes both edges
+		nodes.remove( node );
+
+		final boolean keep = !Neighborhood.isRemovable( img.neighborhood( x, y ) );
+
+		if ( !keep )
+			img.clear( x, y );
+
+		final int[] pixels = new int[ e1.length() + e2.length() + ( keep ? 1 : 0 ) ];
+		int i = 0;
+
+		// from n1 to the node
+		for ( int j = 0; j < e1.length(); ++j )
+			pixels[ i++ ] = e1.pixels[ e1.node2 == node ? j : e1.length() - 1 - j ];
+
+		if ( keep )
+			pixels[ i++ ] = x + y * nodes.getWidth();
+
+		// from the node to n2
+		for ( int j = 0; j < e2.length(); ++j )
+			pixels[ i++ ] = e2.pixels[ e2.node1 == node ? j : e2.length() - 1 - j ];
+
+		final Edge merged = new Edge( pixels, n1, n2 );
+		nodes.addEdge( merged );
+
+		return merged;
+	}
+
 	/**
 	 * change the nodes to one connection less
 	 * 
 	 * @param node
-	 * @param randomAccess
+	 * @param img
 	 * @param nodes
 	 */
-	public < T extends RealType< T > > void reduceNode( final Node node, final LocalizableByDimCursor< T > randomAccess, final ArrayList< Node > nodes )
+	public void reduceNode( final Node node, final SkeletonImage img, final Graph nodes )
 	{	
 		if ( node.numEdges == 1 )
 		{
 			// it was a dead end, delete it
 			nodes.remove( node );
 			
-			randomAccess.setPosition( node.location );
-			randomAccess.getType().setZero();
+			img.clear( node.location[ 0 ], node.location[ 1 ] );
 		}
 		else
 		{
 			// it has one connection less
 			node.numEdges--;
+			nodes.numEdgesChanged();
 		}	
 	}
 	
-	public < T extends RealType< T > > ArrayList< PartialSegment > findAllSegments( final Image< T > img, final KDTree< Node > nodes, final ArrayList< Node > nodeList, final Node centralNode )
+	public < T extends RealType< T > > ArrayList< PartialSegment > findAllSegments( final RandomAccessibleInterval< T > img, final KDTree< Node > nodes, final Graph nodeList, final Node centralNode )
 	{
 		if ( centralNode == null )
 			return null;
 		
 		final ArrayList< PartialSegment > segments = new ArrayList< PartialSegment >( centralNode.numEdges );
+
+		// all edges were traced already
+		if ( centralNode.edges.size() == centralNode.numEdges )
+		{
+			for ( final Edge edge : centralNode.edges )
+				segments.add( nodeList.toPartialSegment( edge, centralNode ) );
+
+			return segments;
+		}
+
+		final SkeletonImage skeleton = SkeletonImage.wrap( img );
 		
 		for ( int i = 0; i < centralNode.numEdges; ++i )
 		{
-			LocalizableByDimCursor< T > randomAccess = img.createLocalizableByDimCursor( new OutOfBoundsStrategyValueFactory< T >() );
-			randomAccess.setPosition( centralNode.getPosition() );
-	
-			PartialSegment s = findPathToNextNode( randomAccess, nodeList, i, true );
+			PartialSegment s = findPathToNextNode( skeleton, centralNode.getPosition(), nodeList, i, true );
 			
 			if ( s == null )
 				return null;
@@ -261,26 +664,26 @@ public class ComputeUnconnected implements PlugIn
 	
 	/**
 	 * Find the two nodes connected by this segment and all points on the connecting line (excluding the nodes). 
-	 * This is still inefficient, doing this with a KD-Tree would be more efficient.
 	 * 
 	 * @param img
 	 * @param nodes
 	 * @param x0
 	 * @param y0
 	 */
-	public < T extends RealType< T > > Segment findSegment( final Image< T > img, final ArrayList< Node > nodes, final int[] start )
+	public < T extends RealType< T > > Segment findSegment( final RandomAccessibleInterval< T > img, final Graph nodes, final int[] start )
 	{
-		LocalizableByDimCursor< T > randomAccess = img.createLocalizableByDimCursor( new OutOfBoundsStrategyValueFactory< T >() );
-		randomAccess.setPosition( start );
-		
-		PartialSegment s1 = findPathToNextNode( randomAccess, nodes, 0 );
-		
-		randomAccess = img.createLocalizableByDimCursor( new OutOfBoundsStrategyValueFactory< T >() );
-		randomAccess.setPosition( start );
-		
-		PartialSegment s2 = findPathToNextNode( randomAccess, nodes, 1 );
+		// a lookup if the pixel belongs to a traced edge
+		final Edge edge = nodes.getEdge( start[ 0 ], start[ 1 ] );
+
+		if ( edge != null )
+			return nodes.toSegment( edge );
 
-		if ( s1 == null || s2 == null )
+		final PathTracer tracer = tracer( SkeletonImage.wrap( img ), nodes );
+
+		// the first half is copied, the second one is read from the tracer
+		final PartialSegment s1 = tracer.trace( start[ 0 ], start[ 1 ], 0, false ) ? tracer.toPartialSegment() : null;
+
+		if ( s1 == null || !tracer.trace( start[ 0 ], start[ 1 ], 1, false ) )
 		{
 			// found a bug in the graph
 			IJ.log( "There is a bug in the graph starting from " + Util.printCoordinates( start ) + ", please re-analyze the image (press 'r')" );
@@ -288,173 +691,78 @@ public class ComputeUnconnected implements PlugIn
 		}
 
 		// is the location we clicked on a node itself?
-		if ( s1.getNode1() == s2.getNode1() && s1.getPoints().size() == 0 && s2.getPoints().size() == 0 )
+		if ( s1.getNode1() == tracer.getNode() && s1.size() == 0 && tracer.size() == 0 )
 			return null;
 		
 		// else build up a list of consequetive points
-		final ArrayList< int[] > points = new ArrayList< int[] >();
+		final int n1 = s1.size();
+		final int[] xs = new int[ n1 + 1 + tracer.size() ];
+		final int[] ys = new int[ xs.length ];
 		
 		// in reverse order the first points
-		for ( int i = s1.getPoints().size() - 1; i >= 0; --i )
-			points.add( s1.getPoints().get( i ) );
+		for ( int i = 0; i < n1; ++i )
+		{
+			xs[ i ] = s1.getX( n1 - 1 - i );
+			ys[ i ] = s1.getY( n1 - 1 - i );
+		}
 		
 		// now the center point that was clicked
-		points.add( start );
+		xs[ n1 ] = start[ 0 ];
+		ys[ n1 ] = start[ 1 ];
 		
 		// and all the other points from partial segment 2
-		for ( int i = 0; i < s2.getPoints().size(); ++i )
-			points.add( s2.getPoints().get( i ) );
+		for ( int i = 0; i < tracer.size(); ++i )
+		{
+			xs[ n1 + 1 + i ] = tracer.getX( i );
+			ys[ n1 + 1 + i ] = tracer.getY( i );
+		}
 
-		return new Segment( points, s1.getNode1(), s2.getNode1() );
+		return new Segment( xs, ys, s1.getNode1(), tracer.getNode() );
 	}
 
 	/**
 	 * Finds the path to the next node from a certain location on a line (excluding the current position and the node itself).
 	 * If the point itself is a node or the directly adjacent one, the list of points will be empty.
 	 * 
-	 * @param randomAccess
+	 * @param img
+	 * @param start
 	 * @param nodes
 	 * @param startDirection
 	 * @return
 	 */
-	public < T extends RealType< T > > PartialSegment findPathToNextNode( final LocalizableByDimCursor< T > randomAccess, final ArrayList< Node > nodes, final int startDirection )
+	public PartialSegment findPathToNextNode( final SkeletonImage img, final int[] start, final Graph nodes, final int startDirection )
 	{
-		return findPathToNextNode( randomAccess, nodes, startDirection, false );
+		return findPathToNextNode( img, start, nodes, startDirection, false );
 	}
 	
-	public < T extends RealType< T > > PartialSegment findPathToNextNode( final LocalizableByDimCursor< T > randomAccess, final ArrayList< Node > nodes, final int startDirection, final boolean ignoreDeadEnds )
+	public PartialSegment findPathToNextNode( final SkeletonImage img, final int[] start, final Graph nodes, final int startDirection, final boolean ignoreDeadEnds )
 	{
-		final ArrayList< int[] > points = new ArrayList< int[] >();
-		Node node = isNode( randomAccess.getPosition(), nodes );
-		
-		if ( node != null && !ignoreDeadEnds )
-				return new PartialSegment( points, node );
-	
-		final int[] startLocation = randomAccess.getPosition();
-		
-		final LocalNeighborhoodCursor< T > neighborhoodCursor = randomAccess.createLocalNeighborhoodCursor();
-		
-		int[] currentPosition = randomAccess.getPosition();
-		int[] nextPosition = null;
-		
-		int count = 0;
-		
-		while ( neighborhoodCursor.hasNext() )
-		{
-			neighborhoodCursor.fwd();
-			
-			if ( neighborhoodCursor.getType().getRealFloat() > 0 )
-			{
-				if ( startDirection == count++ )
-				{
-					nextPosition = randomAccess.getPosition();
-					node = isNode( nextPosition, nodes );
-					
-					break;
-				}
-			}
-		}
-		
-		// startDirection does not exist
-		if ( nextPosition == null )
-		{
-			neighborhoodCursor.close();
-			return new PartialSegment( points, node );
-		}
-		
-		// follow the path until a node is reached
-		while ( node == null )
-		{
-			randomAccess.setPosition( nextPosition );
-			neighborhoodCursor.update();
-			
-			// did we arrive back where we started?
-			// (is it a closed loop without nodes?)
-			if ( isIdentical( nextPosition, startLocation ) )
-			{
-				// add an artifical node at the current location
-				node = new Node( nextPosition, 2 );
-				return new PartialSegment( points, node );
-			}
-			
-			points.add( nextPosition );
-			
-			// find all possible points to continue (except for the one that we come from)
-			final ArrayList< int[] > connections = getAllNeighbors( neighborhoodCursor, currentPosition );
-			
-			if ( connections.size() == 0 )
-			{
-				// a bug in the graph, did not find a node at the end
-				return null;
-			}
-			if ( connections.size() == 1 )
-			{
-				currentPosition = nextPosition;
-				nextPosition = connections.get( 0 );
-
-				// is the next one a node?
-				node = isNode( nextPosition, nodes );
-			}
-			else
-			{
-				// one of them has to be a node, find the one that is
-				for ( final int[] next : connections )
-				{
-					node = isNode( next, nodes );
-					
-					if ( node != null )
-						break;
-				}
-				
-				// there was something wrong, none of them was a node
-				if ( node == null && !ignoreDeadEnds )
-					return null;
-				else
-				{
-					// we have to check if the previous one was a node, if so it is ok
-					Node n = isNode( currentPosition, nodes );
-					
-					if ( n != null && n.numEdges == 3 )
-					{
-						// choose the one that has a distance of 2 from the node
-						for ( final int[] next : connections )
-						{
-							final int dist = Math.max( Math.abs( next[ 0 ] - currentPosition[ 0 ] ), Math.abs( next[ 1 ] - currentPosition[ 1 ] ) );
-							if ( dist >= 2 )
-							{
-								currentPosition = nextPosition;
-								nextPosition = next;
-
-								// is the next one a node?
-								node = isNode( nextPosition, nodes );
-								break;
-							}
-						}
-					}
-				}
-			}
-		}
-		
-		neighborhoodCursor.close();
-		
-		return new PartialSegment( points, node );
-	}
-	
-	public static < T extends RealType< T > > ArrayList< int[] > getAllNeighbors( final LocalNeighborhoodCursor< T > cursor, int[] exclude )
-	{
-		final ArrayList< int[] > list = new ArrayList<int[]>();
-		
-		while ( cursor.hasNext() )
-		{
-			cursor.fwd();
-			
-			if ( cursor.getType().getRealFloat() > 0 )
-				if ( !isIdentical( exclude, cursor.getParentCursor().getPosition() ) )
-					list.add( cursor.getParentCursor().getPosition() );
-		}
-		
-		return list;
-	}
+		final PathTracer tracer = tracer( img, nodes );
+
+		if ( !tracer.trace( start[ 0 ], start[ 1 ], startDirection, ignoreDeadEnds ) )
+			return null;
+
+		return tracer.toPartialSegment();
+	}
+
+	/**
+	 * @return - the {@link PathTracer} of the current thread, set to this image and graph
+	 */
+	protected PathTracer tracer( final SkeletonImage img, final Graph nodes )
+	{
+		final PathTracer tracer = tracers.get();
+		tracer.set( img, nodes );
+
+		return tracer;
+	}
+
+	/**
+	 * @return - the number of 8-connected neighbors that are part of the skeleton
+	 */
+	public static int numNeighbors( final SkeletonImage img, final int x, final int y )
+	{
+		return Neighborhood.numNeighbors( img.neighborhood( x, y ) );
+	}
 	
 	public static boolean isIdentical( final int[] p1, final int[] p2 )
 	{
@@ -465,13 +773,14 @@ public class ComputeUnconnected implements PlugIn
 		return true;
 	}
 	
-	public Node isNode( final int[] position, final ArrayList< Node > nodes )
+	/**
+	 * @param position
+	 * @param nodes
+	 * @return - the node at this position or null, O(1) using the index of the {@link Graph}
+	 */
+	public Node isNode( final int[] position, final Graph nodes )
 	{
-		for ( final Node node : nodes )
-			if ( position[ 0 ] == node.getPosition()[ 0 ] && position[ 1 ] == node.getPosition()[ 1 ] )
-				return node;
-		
-		return null;
+		return nodes.getNode( position );
 	}
 
 	public Node isNode( final Localizable position, final NearestNeighborSearch< Node > nodeSearch )
@@ -489,43 +798,44 @@ public class ComputeUnconnected implements PlugIn
 		return node;
 	}
 
-	public < T extends RealType< T > > int[] findClosestPointOnPath( final Image< T > img, final int x0, final int y0, final ArrayList< Node > nodes )
+	public < T extends RealType< T > > int[] findClosestPointOnPath( final RandomAccessibleInterval< T > img, final int x0, final int y0, final Graph nodes )
 	{
-		final LocalizableByDimCursor< T > randomAccess = img.createLocalizableByDimCursor( new OutOfBoundsStrategyValueFactory< T >() );
-		
-		randomAccess.setPosition( x0, 0 );
-		randomAccess.setPosition( y0, 1 );
-		
-		final LocalizableByDimCursor< T > localCursor = img.createLocalizableByDimCursor( new OutOfBoundsStrategyValueFactory< T >() );
-		final LocalNeighborhoodCursor< T > neighborhoodCursor = localCursor.createLocalNeighborhoodCursor();
+		return findClosestPointOnPath( img, x0, y0, nodes, closestPointRadius );
+	}
+
+	/**
+	 * @param img
+	 * @param x0
+	 * @param y0
+	 * @param nodes
+	 * @param radius - the largest distance in pixels
+	 * @return - the closest pixel on a path between two nodes (not a node itself), or null
+	 */
+	public < T extends RealType< T > > int[] findClosestPointOnPath( final RandomAccessibleInterval< T > img, final int x0, final int y0, final Graph nodes, final double radius )
+	{
+		final SkeletonImage skeleton = SkeletonImage.wrap( img );
+
+		if ( useNearestPixelMap )
+		{
+			final int pixel = nodes.getClosestPathPixel( skeleton, x0, y0, radius );
 
-		for ( int r = 0; r <= 5; ++r )
+			return pixel < 0 ? null : new int[]{ pixel % nodes.getWidth(), pixel / nodes.getWidth() };
+		}
+
+		for ( int r = 0; r <= radius; ++r )
 			for ( int x = x0 - r; x <= x0 + r; ++x )
 				for ( int y = y0 - r; y <= y0 + r; ++y )
 				{
-					randomAccess.setPosition( x, 0 );
-					randomAccess.setPosition( y, 1 );
-				
-					if ( randomAccess.getType().getRealFloat() > 0 )
+					if ( skeleton.isSet( x, y ) )
 					{
 						// test that it has exactly two neighbors in the 8-neighborhood,
 						// otherwise it is a point of interest itself (which we do not want
-						localCursor.setPosition( randomAccess );
-						neighborhoodCursor.update();
-						
-						int numNeighbors = 0;
-
-						while ( neighborhoodCursor.hasNext() )
-						{
-							neighborhoodCursor.fwd();
-							if ( neighborhoodCursor.getType().getRealFloat() > 0 )
-								numNeighbors++;
-						}
+						final int numNeighbors = numNeighbors( skeleton, x, y );
 
 						// if two neighbors return the position
 						// also check that it is not one of the left-over nodes which also has two neighbors 
-						if ( numNeighbors == 2 && null == isNode( randomAccess.getPosition(), nodes ) )
-							return randomAccess.getPosition();
+						if ( numNeighbors == 2 && null == nodes.getNode( x, y ) )
+							return new int[]{ x, y };
 						
 						// else continue searching on the next position
 					}
@@ -537,92 +847,161 @@ public class ComputeUnconnected implements PlugIn
 	/**
 	 * Remove all pixels that are redundant if they are still connected by 8-neighborhood 
 	 * 
-	 * @param image
+	 * @param img
+	 * @param frame - only used for logging
 	 */
-	public < T extends RealType< T > > void removeRedundantPixels( final Image< T > img, final int frame )
+	public < T extends RealType< T > > void removeRedundantPixels( final RandomAccessibleInterval< T > img, final int frame )
 	{
-		removeSpecialCase( img );
+		final SkeletonImage skeleton = SkeletonImage.wrap( img );
+
+		removeSpecialCase( skeleton );
 
-		final LocalizableCursor< T > cursor = img.createLocalizableCursor();
-		final LocalizableByDimCursor< T > localCursor = img.createLocalizableByDimCursor( new OutOfBoundsStrategyValueFactory< T >() );
-		final LocalNeighborhoodCursor< T > neighborhoodCursor = localCursor.createLocalNeighborhoodCursor();
+		final int countRemoved;
 
+		if ( parallelThinning )
+			countRemoved = removeRedundantPixelsParallel( skeleton );
+		else
+			countRemoved = removeRedundantPixelsSequential( skeleton );
+	
+		if ( countRemoved > 0 )
+			IJ.log( "Removed " + countRemoved + " redundant pixels in frame " + frame );
+	}
+
+	/**
+	 * The original single raster scan, every decision sees the removals of the pixels scanned before.
+	 * 
+	 * @param skeleton
+	 * @return - the number of removed pixels
+	 */
+	public static int removeRedundantPixelsSequential( final SkeletonImage skeleton )
+	{
+		return removeRedundantPixelsSequential( skeleton, 0, 0, skeleton.getWidth() - 1, skeleton.getHeight() - 1 );
+	}
+
+	/**
+	 * The original single raster scan within a rectangle (e.g. the part of the image that was painted).
+	 * 
+	 * @param skeleton
+	 * @param minX, minY, maxX, maxY - the rectangle (inclusive)
+	 * @return - the number of removed pixels
+	 */
+	public static int removeRedundantPixelsSequential( final SkeletonImage skeleton, final int minX, final int minY, final int maxX, final int maxY )
+	{
 		int countRemoved = 0;
 		
-		while( cursor.hasNext() )
-		{
-			cursor.fwd();
-			
-			// is intensity > 0?
-			if ( cursor.getType().getRealFloat() > 0 )
+		for ( int y = minY; y <= maxY; ++y )
+			for ( int x = minX; x <= maxX; ++x )
 			{
-				localCursor.setPosition( cursor );
-				neighborhoodCursor.update();
+				// is intensity > 0?
+				if ( !skeleton.isSet( x, y ) )
+					continue;
 
-				final ArrayList<int[]> neighbors = new ArrayList<int[]>();
-				
-				// how many 8-connected neighboring pixels are >0?
-				while ( neighborhoodCursor.hasNext() )
+				// if it has at least two neighboring pixels that are still 8-connected when
+				// we remove the current one, we can remove it from the image (this depends only
+				// on the 8-neighborhood, which is evaluated on the current state of the image)
+				if ( Neighborhood.isRemovable( skeleton.neighborhood( x, y ) ) )
 				{
-					neighborhoodCursor.fwd();
-					
-					if ( neighborhoodCursor.getType().getRealFloat() > 0 )
-						neighbors.add( localCursor.getPosition() );
+					skeleton.clear( x, y );
+					++countRemoved;
 				}
-				
-				// only if it has at least two neighboring pixels we can test if they are
-				// still 8-connected if we remove the current one
-				if ( neighbors.size() >= 2 )
+			}
+
+		return countRemoved;
+	}
+
+	/**
+	 * Removes redundant pixels in four subfields (even/odd x and y). Two pixels of the same subfield are never
+	 * neighbors, so every decision within a subfield only depends on pixels of the other subfields and all of
+	 * them can be made in parallel (bands of rows on the fork-join pool) without changing the result. The four
+	 * passes are repeated until nothing changes, so the result is deterministic and topology-preserving.
+	 * 
+	 * @param skeleton
+	 * @return - the number of removed pixels
+	 */
+	public static int removeRedundantPixelsParallel( final SkeletonImage skeleton )
+	{
+		final int height = skeleton.getHeight();
+		final int numBands = Math.max( 1, ( height + THINNING_BAND_HEIGHT - 1 ) / THINNING_BAND_HEIGHT );
+
+		int countRemoved = 0;
+		int removedInRound;
+
+		do
+		{
+			removedInRound = 0;
+
+			for ( int subfield = 0; subfield < 4; ++subfield )
+			{
+				final int sx = subfield % 2;
+				final int sy = subfield / 2;
+
+				final ArrayList< ForkJoinTask< Integer > > tasks = new ArrayList< ForkJoinTask< Integer > >( numBands );
+
+				for ( int b = 0; b < numBands; ++b )
 				{
-					// the remaining pixels must still be conntected through 8-neighborhood
-					// if we can iteratively add all pixels to the connected list,
-					// they are all directly or indirectly connected once the central pixel
-					// is removed
-					final ArrayList<int[]> connected = new ArrayList<int[]>();
-					
-					// add the first one
-					connected.add( neighbors.get( 0 ) );
-					neighbors.remove( 0 );
-
-					boolean added = false;
-					do
-					{
-						added = false;
-						
-						// is any of the pixels
-A:						for ( final int[] p1 : neighbors )
-						{
-							// 8-connected to any of the pixels in the connected list?
-							for ( final int[] p2 : connected )
-							{
-								if ( is8connected( p1, p2 ) )
-								{
-									connected.add( p1 );
-									neighbors.remove( p1 );
-									added = true;
-									break A;
-								}
-							}
-						}
-					} while ( added );
-					
-					// if we managed to put all pixels into the connected list
-					// we can remove the current pixel from the image
-					
-					if ( neighbors.size() == 0 )
-					{
-						cursor.getType().setZero();
-						++countRemoved;
-					}
+					final int y0 = b * THINNING_BAND_HEIGHT;
+					final int y1 = Math.min( height, y0 + THINNING_BAND_HEIGHT );
+					final SkeletonImage view = skeleton.newView();
+
+					tasks.add( ForkJoinTask.adapt( () -> removeRedundantPixels( view, sx, sy, 0, skeleton.getWidth(), y0, y1 ) ) );
 				}
+
+				for ( final ForkJoinTask< Integer > task : ForkJoinTask.invokeAll( tasks ) )
+					removedInRound += task.join();
 			}
+
+			countRemoved += removedInRound;
 		}
-	
-		if ( countRemoved > 0 )
-			IJ.log( "Removed " + countRemoved + " redundant pixels in frame " + frame );
+		while ( removedInRound > 0 );
+
+		return countRemoved;
+	}
+
+	/**
+	 * Removes the redundant pixels of one subfield within a rectangle (e.g. a band of rows).
+	 * 
+	 * @param skeleton
+	 * @param sx - 0 for even x, 1 for odd x
+	 * @param sy - 0 for even y, 1 for odd y
+	 * @param x0 - first column (inclusive)
+	 * @param x1 - last column (exclusive)
+	 * @param y0 - first row (inclusive)
+	 * @param y1 - last row (exclusive)
+	 * @return - the number of removed pixels
+	 */
+	protected static int removeRedundantPixels( final SkeletonImage skeleton, final int sx, final int sy, final int x0, final int x1, final int y0, final int y1 )
+	{
+		int countRemoved = 0;
+
+		for ( int y = y0 + ( ( sy - y0 ) & 1 ); y < y1; y += 2 )
+			for ( int x = x0 + ( ( sx - x0 ) & 1 ); x < x1; x += 2 )
+			{
+				if ( skeleton.isSet( x, y ) && Neighborhood.isRemovable( skeleton.neighborhood( x, y ) ) )
+				{
+					skeleton.clear( x, y );
+					++countRemoved;
+				}
+			}
+
+		return countRemoved;
 	}
 	
-	public static < T extends RealType< T > > boolean removeSpecialCase( final Image< T > img )
+	public static < T extends RealType< T > > boolean removeSpecialCase( final RandomAccessibleInterval< T > img )
+	{
+		return removeSpecialCase( SkeletonImage.wrap( img ) );
+	}
+
+	public static boolean removeSpecialCase( final SkeletonImage img )
+	{
+		return removeSpecialCase( img, 0, 0, img.getWidth() - 1, img.getHeight() - 1 );
+	}
+
+	/**
+	 * @param img
+	 * @param minX, minY, maxX, maxY - the rectangle that is tested (inclusive)
+	 * @return - true if a special case was found (and removed)
+	 */
+	public static boolean removeSpecialCase( final SkeletonImage img, final int minX, final int minY, final int maxX, final int maxY )
 	{
 		// we have to test for a special case which looks like this
 		
@@ -631,38 +1010,18 @@ A:						for ( final int[] p1 : neighbors )
 		//    xx     -->  x x
 		//   x  x        x  x
 		int count = 0;
-		
-		final LocalizableCursor< T > cursor = img.createLocalizableCursor();
-		final LocalizableByDimCursor< T > randomAccess = img.createLocalizableByDimCursor( new OutOfBoundsStrategyValueFactory< T >() );
-		
-		while( cursor.hasNext() )
-		{
-			if ( cursor.next().getRealFloat() > 0 )
+
+		for ( int y = minY; y <= maxY; ++y )
+			for ( int x = minX; x <= maxX; ++x )
 			{
-				boolean specialCase = true;
-				
-				randomAccess.setPosition( cursor );
-				
-				randomAccess.bck( 0 );
-				specialCase &= randomAccess.getType().getRealFloat() > 0;
-				randomAccess.bck( 1 );
-				specialCase &= randomAccess.getType().getRealFloat() > 0;
-				randomAccess.fwd( 0 );
-				specialCase &= randomAccess.getType().getRealFloat() > 0;
-				
-				if ( specialCase )
+				if ( img.isSet( x, y ) && img.isSet( x - 1, y ) && img.isSet( x - 1, y - 1 ) && img.isSet( x, y - 1 ) )
 				{
 					++count;
-					randomAccess.fwd( 0 );
-					randomAccess.fwd( 1 );
-					
-					if ( randomAccess.getPosition( 0 ) < img.getDimension( 0 ) )
-						randomAccess.getType().set( cursor.getType() );
-					
-					cursor.getType().setZero();
+
+					img.set( x + 1, y, img.get( x, y ) );
+					img.clear( x, y );
 				}
 			}
-		}
 
 		if ( count > 0 )
 			IJ.log( "Removed " + count + " special cases." );
@@ -677,125 +1036,302 @@ A:						for ( final int[] p1 : neighbors )
 	 * @param img
 	 * @return
 	 */
-	public < T extends RealType< T > > ArrayList< Node > findAllNodes( final Image< T > img, final int frame )
+	public < T extends RealType< T > > Graph findAllNodes( final RandomAccessibleInterval< T > img, final int frame )
 	{
-		final ArrayList< Node > nodes = new ArrayList<Node>();
+		final SkeletonImage skeleton = SkeletonImage.wrap( img );
+
+		final int width = skeleton.getWidth();
+		final int height = skeleton.getHeight();
+
+		final Graph nodes = new Graph( width, height );
+
+		final int countRemoved = findNodes( skeleton, nodes, 0, 0, width - 1, height - 1 );
 		
-		final LocalizableCursor< T > cursor = img.createLocalizableCursor();
-		final LocalizableByDimCursor< T > localCursor = img.createLocalizableByDimCursor( new OutOfBoundsStrategyValueFactory< T >() );
-		final LocalNeighborhoodCursor< T > neighborhoodCursor = localCursor.createLocalNeighborhoodCursor();
+		if ( countRemoved > 0 )
+			IJ.log( "Removed " + countRemoved + " isolated pixels in frame " + frame );
 		
+		return nodes;
+	}
+
+	/**
+	 * Finds the nodes within a rectangle and adds them to the graph, isolated pixels are deleted.
+	 * 
+	 * @param skeleton
+	 * @param nodes
+	 * @param minX, minY, maxX, maxY - the rectangle (inclusive)
+	 * @return - the number of deleted isolated pixels
+	 */
+	protected static int findNodes( final SkeletonImage skeleton, final Graph nodes, final int minX, final int minY, final int maxX, final int maxY )
+	{
 		int countRemoved = 0;
 		
-		while( cursor.hasNext() )
-		{
-			cursor.fwd();
-			
-			// is intensity > 0?
-			if ( cursor.getType().getRealFloat() > 0 )
+		for ( int y = minY; y <= maxY; ++y )
+			for ( int x = minX; x <= maxX; ++x )
 			{
-				localCursor.setPosition( cursor );
-				neighborhoodCursor.update();
-				
-				final ArrayList<int[]> neighbors = new ArrayList<int[]>();
-				
+				// is intensity > 0?
+				if ( !skeleton.isSet( x, y ) )
+					continue;
+
 				// how many 8-connected neighboring pixels are >0?
-				while ( neighborhoodCursor.hasNext() )
-				{
-					neighborhoodCursor.fwd();
-					
-					if ( neighborhoodCursor.getType().getRealFloat() > 0 )
-						neighbors.add( localCursor.getPosition() );
-				}
+				final int code = skeleton.neighborhood( x, y );
+				final int numNeighbors = Neighborhood.numNeighbors( code );
 				
-				int numEdges = neighbors.size();
-				
-				if ( numEdges == 0 )
+				if ( numNeighbors == 0 )
 				{
 					// delete isolated pixels
-					cursor.getType().setZero();
+					skeleton.clear( x, y );
 					countRemoved++;
 				}
-				if ( numEdges == 1 )
+				else if ( numNeighbors == 1 )
 				{
 					// it is a dead end
-					nodes.add( new Node( cursor.getPosition(), numEdges ) );
+					nodes.add( new Node( new int[]{ x, y }, numNeighbors ) );
 				}
-				else if ( numEdges > 2 )
+				else if ( numNeighbors > 2 )
 				{
-					// it is a junction, test if the neighbors are 4-connected
-					// if they are we are they count only as one as it has to be
-					// a line that is hit.
-					
-					// all combinations test only p1 => p2, NOT also p2 => p1!
-					for ( int i = 0; i < neighbors.size() - 1; ++i )
-						for ( int j = i + 1; j < neighbors.size(); ++j )
-							if ( is4connected( neighbors.get( i ), neighbors.get( j ) ) )
-								--numEdges;
+					// it is a junction, neighbors that are 4-connected count only as
+					// one as it has to be a line that is hit.
+					final int numEdges = Neighborhood.numEdges( code );
 
 					// if there are still enough edges touching, add it to the node list
 					if ( numEdges > 2 )
-						nodes.add( new Node( cursor.getPosition(), numEdges ) );
+						nodes.add( new Node( new int[]{ x, y }, numEdges ) );
 				}
 			}
-		}
-		
-		if ( countRemoved > 0 )
-			IJ.log( "Removed " + countRemoved + " isolated pixels in frame " + frame );
-		
-		return nodes;
+
+		return countRemoved;
 	}
 	
 	/**
-	 * Tests if two points are 8-connected
+	 * Traces every edge of the skeleton once, starting from all nodes, and adds it to the graph. Pixels that
+	 * are already part of an edge are not visited again, so the work is linear in the number of skeleton pixels.
+	 * Closed loops without a node are not part of the graph.
 	 * 
-	 * @param p1
-	 * @param p2
-	 * @return - true if 8-connected (or if p1 == p2) 
+	 * @param skeleton
+	 * @param nodes - all nodes (see {@link #findAllNodes(RandomAccessibleInterval, int)})
+	 * @return - the number of paths that did not end at a node (a bug in the graph)
 	 */
-	private static boolean is8connected( final int[] p1, final int[] p2 )
+	public static int traceEdges( final SkeletonImage skeleton, final Graph nodes )
 	{
-		int maxDist = 0;
-		
-		for ( int d = 0; d < p1.length; ++d )
-			maxDist = Math.max( Math.abs( p1[ d ] - p2[ d ] ), maxDist );
-		
-		return maxDist < 2;	
+		return traceEdges( skeleton, nodes, nodes );
 	}
 
 	/**
-	 * Tests if two points are 4-connected
+	 * Traces all edges that are not part of the graph yet and start at one of the given nodes.
 	 * 
-	 * @param p1
-	 * @param p2
-	 * @return - true if 4-connected (or if p1 == p2) 
+	 * @param skeleton
+	 * @param nodes
+	 * @param from - the nodes whose edges are traced
+	 * @return - the number of paths that did not end at a node (a bug in the graph)
 	 */
-	private static boolean is4connected( final int[] p1, final int[] p2 )
+	public static int traceEdges( final SkeletonImage skeleton, final Graph nodes, final Iterable< Node > from )
 	{
-		int sumDist = 0;
-		
-		for ( int d = 0; d < p1.length; ++d )
-			sumDist += Math.abs( p1[ d ] - p2[ d ] );
-		
-		return sumDist < 2;	
+		final PathBuffer path = new PathBuffer();
+
+		int countFailed = 0;
+
+		for ( final Node node : from )
+		{
+			final int x0 = node.location[ 0 ];
+			final int y0 = node.location[ 1 ];
+			final int code = skeleton.neighborhood( x0, y0 );
+
+			for ( int i = 0; i < 8; ++i )
+			{
+				if ( ( code & ( 1 << i ) ) == 0 )
+					continue;
+
+				final int x = x0 + Neighborhood.NEIGHBOR_X[ i ];
+				final int y = y0 + Neighborhood.NEIGHBOR_Y[ i ];
+
+				final Node next = nodes.getNode( x, y );
+
+				if ( next != null )
+				{
+					// two adjacent nodes, the edge has no pixels (added once)
+					if ( nodes.getDirectEdge( node, next ) == null )
+						nodes.addEdge( new Edge( new int[ 0 ], node, next ) );
+
+					continue;
+				}
+
+				// traced from the other end or through another neighbor of the same branch already
+				if ( nodes.getEdge( x, y ) != null || isSameBranch( nodes, x0, y0, code, i ) )
+					continue;
+
+				final Edge edge = traceEdge( skeleton, nodes, node, x, y, path );
+
+				if ( edge == null )
+					++countFailed;
+				else
+					nodes.addEdge( edge );
+			}
+		}
+
+		return countFailed;
 	}
-	
-	public void drawNodes( final ArrayList<Node> nodes, final int[] imgSize ) 
+
+	/**
+	 * @return - true if the neighbor i is 4-connected to an earlier neighbor that is not a node, which
+	 * starts the same branch (like in {@link Neighborhood#computeNumEdges(int)})
+	 */
+	protected static boolean isSameBranch( final Graph nodes, final int x0, final int y0, final int code, final int i )
+	{
+		for ( int j = 0; j < i; ++j )
+			if ( ( code & ( 1 << j ) ) != 0 && Neighborhood.is4connected( i, j ) &&
+					nodes.getNode( x0 + Neighborhood.NEIGHBOR_X[ j ], y0 + Neighborhood.NEIGHBOR_Y[ j ] ) == null )
+				return true;
+
+		return false;
+	}
+
+	/**
+	 * Follows the path from a node through (x,y) until the next node is reached. Pixels of the path are
+	 * marked in the edge index of the graph while tracing (and unmarked if it fails), so they are never
+	 * visited twice.
+	 * 
+	 * @return - the edge or null if the path did not end at a node
+	 */
+	protected static Edge traceEdge( final SkeletonImage skeleton, final Graph nodes, final Node start, final int x, final int y, final PathBuffer path )
 	{
-		Image< UnsignedByteType > nodeImg = new ImageFactory< UnsignedByteType >( new UnsignedByteType(), new ArrayContainerFactory() ).createImage( imgSize );
+		final int width = nodes.getWidth();
+
+		path.clear();
+
+		int px = start.location[ 0 ], py = start.location[ 1 ];
+		int cx = x, cy = y;
+
+		while ( true )
+		{
+			path.add( cx + cy * width );
+			nodes.edgeIndex.put( cx + cy * width, PathBuffer.TRACING );
+
+			final int code = skeleton.neighborhood( cx, cy );
+
+			Node end = null, fallbackEnd = null;
+			boolean backAtStart = false;
+			int next = -1, fallback = -1;
+
+			for ( int i = 0; i < 8 && end == null; ++i )
+			{
+				if ( ( code & ( 1 << i ) ) == 0 )
+					continue;
+
+				final int xi = cx + Neighborhood.NEIGHBOR_X[ i ];
+				final int yi = cy + Neighborhood.NEIGHBOR_Y[ i ];
+
+				if ( xi == px && yi == py )
+					continue;
+
+				// also a neighbor of the previous pixel, only a shortcut around a corner
+				final boolean shortcut = Math.max( Math.abs( xi - px ), Math.abs( yi - py ) ) < 2;
+				final Node node = nodes.getNode( xi, yi );
+
+				if ( node == start )
+					backAtStart = true;
+				else if ( node != null )
+				{
+					if ( !shortcut )
+						end = node;
+					else if ( fallbackEnd == null )
+						fallbackEnd = node;
+				}
+				else if ( nodes.getEdge( xi, yi ) != null )
+					continue;
+				else if ( shortcut )
+				{
+					if ( fallback == -1 )
+						fallback = i;
+				}
+				else if ( next == -1 )
+				{
+					next = i;
+				}
+			}
+
+			// go around the corner only if there is nothing else
+			if ( end == null && next == -1 )
+			{
+				if ( fallbackEnd != null )
+					end = fallbackEnd;
+				else if ( fallback != -1 )
+					next = fallback;
+				else if ( backAtStart && path.size() > 1 )
+					end = start;
+			}
+
+			if ( end != null )
+			{
+				final int[] pixels = path.toArray();
+				final Edge edge = new Edge( pixels, start, end );
+
+				for ( final int pixel : pixels )
+					nodes.edgeIndex.remove( pixel );
+
+				return edge;
+			}
 
-		final LocalizableByDimCursor< UnsignedByteType > c = nodeImg.createLocalizableByDimCursor();
+			if ( next == -1 )
+			{
+				for ( int i = 0; i < path.size(); ++i )
+					nodes.edgeIndex.remove( path.get( i ) );
+
+				return null;
+			}
+
+			px = cx;
+			py = cy;
+			cx += Neighborhood.NEIGHBOR_X[ next ];
+			cy += Neighborhood.NEIGHBOR_Y[ next ];
+		}
+	}
+
+	/**
+	 * A growable list of packed pixel locations, reused for all paths of a frame.
+	 */
+	protected static class PathBuffer
+	{
+		// marks pixels in the edge index while they are traced
+		final static Edge TRACING = new Edge( new int[ 0 ], null, null );
+
+		int[] pixels = new int[ 64 ];
+		int size = 0;
+
+		public void clear() { size = 0; }
+		public int size() { return size; }
+		public int get( final int i ) { return pixels[ i ]; }
+
+		public void add( final int pixel )
+		{
+			if ( size == pixels.length )
+				pixels = Arrays.copyOf( pixels, size * 2 );
+
+			pixels[ size++ ] = pixel;
+		}
+
+		public int[] toArray() { return Arrays.copyOf( pixels, size ); }
+	}
+
+	public void drawNodes( final Iterable<Node> nodes, final int[] imgSize ) 
+	{
+		final ArrayImg< UnsignedByteType, ByteArray > nodeImg = ArrayImgs.unsignedBytes( imgSize[ 0 ], imgSize[ 1 ] );
+
+		final RandomAccess< UnsignedByteType > c = nodeImg.randomAccess();
 		
 		for ( final Node n : nodes )
 		{
 			c.setPosition( n.location );
-			c.getType().set( n.numEdges );
+			c.get().set( n.numEdges );
 		}
 
 		ImageJFunctions.show( nodeImg );
 	}
 
-	public void printNodeStatistics( final Collection< Node > nodes )
+	/**
+	 * @param nodes
+	 * @return - how many nodes have a certain number of edges (the index), at least up to 2 edges
+	 */
+	public static int[] countNodesPerNumEdges( final Iterable< Node > nodes )
 	{
 		int maxNumEdges = 0;
 		
@@ -807,6 +1343,13 @@ A:						for ( final int[] p1 : neighbors )
 		
 		for ( final Node n : nodes )
 			++count[ n.numEdges ];
+
+		return count;
+	}
+
+	public void printNodeStatistics( final Iterable< Node > nodes )
+	{
+		final int[] count = countNodesPerNumEdges( nodes );
 		
 		IJ.log( "Dead-end pixels: " + count[ 1 ] );
 		IJ.log( "Left-over forks: " + count[ 2 ] );
@@ -815,17 +1358,14 @@ A:						for ( final int[] p1 : neighbors )
 			IJ.log( i + "-way fork pixels: " + count[ i ] );
 	}
 	
-	public Image< FloatType > open( final String file )
+	public ImagePlus open( final String file )
 	{
-		try 
-		{
-			return new ImageOpener().openImage( file, new ImageFactory<FloatType>( new FloatType(),  new ArrayContainerFactory() ) );
-		}
-		catch ( Exception e )
-		{
-			e.printStackTrace();
-			return null;
-		}
+		final ImagePlus imp = IJ.openImage( file );
+
+		if ( imp == null )
+			IJ.log( "Could not open '" + file + "'." );
+
+		return imp;
 	}
 	
 	public static void main( String[] args )
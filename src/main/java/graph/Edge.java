@@ -0,0 +1,38 @@
+package graph;
+
+/**
+ * A path of the skeleton between two nodes. The pixels (excluding the nodes) are stored as packed locations
+ * (x + y * width of the {@link Graph}) in order from node1 to node2, so that a whole frame needs one int per
+ * skeleton pixel instead of one int[] per pixel.
+ */
+public class Edge
+{
+	final int[] pixels;
+	final Node node1, node2;
+
+	// position in the edge list of the Graph it belongs to (-1 if none)
+	int id = -1;
+
+	public Edge( final int[] pixels, final Node node1, final Node node2 )
+	{
+		this.pixels = pixels;
+		this.node1 = node1;
+		this.node2 = node2;
+	}
+
+	public int[] getPixels() { return pixels; }
+	public int length() { return pixels.length; }
+	public Node getNode1() { return node1; }
+	public Node getNode2() { return node2; }
+
+	/**
+	 * @param node - one end of this edge
+	 * @return - the node at the other end
+	 */
+	public Node getOtherNode( final Node node ) { return node == node1 ? node2 : node1; }
+
+	/**
+	 * @return - if it starts and ends at the same node
+	 */
+	public boolean isLoop() { return node1 == node2; }
+}
@@ -0,0 +1,137 @@
+package graph;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers the analyzed {@link Graph} of the most recently used frames, so going back to a frame does not
+ * re-run the analysis. Every edit of a frame either puts the updated graph or invalidates the entry, so an
+ * entry is valid until then; changes of the pixels by other ImageJ tools are only noticed if
+ * {@link #verifyChecksum} is set, otherwise the frame has to be analyzed again by hand ('r'). The least recently
+ * used entry is evicted once the capacity is reached, passes over all frames use
+ * {@link #peek(int, SkeletonImage)} so they do not evict the frames that are worked on.
+ */
+public class FrameCache
+{
+	// compare a checksum of all pixels on every lookup to notice changes made outside of the plugin, O(width * height)
+	public static boolean verifyChecksum = false;
+
+	final int capacity;
+	final LinkedHashMap< Integer, Entry > entries;
+
+	protected static class Entry
+	{
+		final Graph graph;
+		final long checksum;
+
+		public Entry( final Graph graph, final long checksum )
+		{
+			this.graph = graph;
+			this.checksum = checksum;
+		}
+	}
+
+	public FrameCache( final int capacity )
+	{
+		this.capacity = capacity;
+
+		// insertion-order, get() re-inserts an entry so the eldest one is the least recently used one
+		this.entries = new LinkedHashMap< Integer, Entry >( 16, 0.75f, false )
+		{
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry( final Map.Entry< Integer, Entry > eldest )
+			{
+				return size() > FrameCache.this.capacity;
+			}
+		};
+	}
+
+	/**
+	 * @param frame
+	 * @param img - the current pixels of the frame
+	 * @return - the cached graph or null if there is none or the pixels changed since
+	 */
+	public synchronized Graph get( final int frame, final SkeletonImage img )
+	{
+		final Graph graph = peek( frame, img );
+
+		// now the most recently used one
+		if ( graph != null )
+			entries.put( frame, entries.remove( frame ) );
+
+		return graph;
+	}
+
+	/**
+	 * Like {@link #get(int, SkeletonImage)}, but does not count as a use of the entry.
+	 *
+	 * @param frame
+	 * @param img - the current pixels of the frame
+	 * @return - the cached graph or null if there is none or the pixels changed since
+	 */
+	public synchronized Graph peek( final int frame, final SkeletonImage img )
+	{
+		final Entry entry = entries.get( frame );
+
+		if ( entry == null )
+			return null;
+
+		if ( verifyChecksum && entry.checksum != img.checksum() )
+		{
+			entries.remove( frame );
+			return null;
+		}
+
+		return entry.graph;
+	}
+
+	/**
+	 * @param frame
+	 * @param graph - the result of the analysis
+	 * @param img - the pixels of the frame after the analysis
+	 */
+	public synchronized void put( final int frame, final Graph graph, final SkeletonImage img )
+	{
+		entries.put( frame, new Entry( graph, verifyChecksum ? img.checksum() : 0 ) );
+	}
+
+	/**
+	 * @param frame
+	 * @param graph
+	 * @return - if this is the graph that is cached for the frame
+	 */
+	public synchronized boolean holds( final int frame, final Graph graph )
+	{
+		final Entry entry = entries.get( frame );
+
+		return entry != null && entry.graph == graph;
+	}
+
+	/**
+	 * @param frame
+	 * @return - if there is an entry for the frame (it might be outdated though)
+	 */
+	public synchronized boolean contains( final int frame )
+	{
+		return entries.containsKey( frame );
+	}
+
+	/**
+	 * Marks a frame as edited, it will be analyzed again the next time.
+	 *
+	 * @param frame
+	 */
+	public synchronized void invalidate( final int frame )
+	{
+		entries.remove( frame );
+	}
+
+	public synchronized void clear()
+	{
+		entries.clear();
+	}
+
+	public synchronized int size() { return entries.size(); }
+}
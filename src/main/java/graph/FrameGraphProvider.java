@@ -0,0 +1,127 @@
+package graph;
+
+import ij.ImagePlus;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * Gives access to the pixels and the analyzed {@link Graph} of every frame directly from the stack, without
+ * changing the displayed frame. Graphs are taken from the {@link FrameCache} if the pixels did not change since
+ * the analysis. It is thread-safe: the same frame is never analyzed by two threads at once, different frames
+ * are analyzed in parallel.
+ */
+public class FrameGraphProvider< T extends RealType< T > >
+{
+	final ComputeUnconnected parent;
+	final ImagePlus imp;
+	final int channel;
+	final FrameCache frameCache;
+
+	// one lock per frame
+	final Object[] locks;
+
+	/**
+	 * @param parent
+	 * @param imp
+	 * @param channel - the segmentation channel (0-based), or -1 for a single-channel image
+	 * @param frameCache
+	 */
+	public FrameGraphProvider( final ComputeUnconnected parent, final ImagePlus imp, final int channel, final FrameCache frameCache )
+	{
+		this.parent = parent;
+		this.imp = imp;
+		this.channel = channel;
+		this.frameCache = frameCache;
+
+		this.locks = new Object[ imp.getNFrames() ];
+
+		for ( int t = 0; t < locks.length; ++t )
+			locks[ t ] = new Object();
+	}
+
+	public int numFrames() { return locks.length; }
+	public FrameCache getFrameCache() { return frameCache; }
+
+	/**
+	 * Whoever changes the pixels or the graph of a frame has to hold its lock, so that it is not analyzed or
+	 * edited by another thread at the same time.
+	 *
+	 * @param frame - 1-based
+	 * @return - the lock of the frame
+	 */
+	public Object getLock( final int frame ) { return locks[ frame - 1 ]; }
+
+	/**
+	 * @param frame - 1-based
+	 * @return - the pixels of the segmentation channel of this frame (no copy)
+	 */
+	public RandomAccessibleInterval< T > getImage( final int frame )
+	{
+		return ComputeUnconnected.wrapFrame( imp, channel, frame );
+	}
+
+	/**
+	 * @param frame - 1-based
+	 * @return - the cached graph of the frame, or a new one if there is none or the pixels changed since
+	 */
+	public Graph getGraph( final int frame )
+	{
+		return getGraph( frame, true );
+	}
+
+	/**
+	 * @param frame - 1-based
+	 * @param cache - false for passes over all frames (tracking): a cached graph is used but stays as old as it
+	 * was, a new one is not cached, so the frames around the shown one are not evicted (and no checksum is
+	 * computed for it)
+	 * @return - the cached graph of the frame, or a new one if there is none or the pixels changed since
+	 */
+	public Graph getGraph( final int frame, final boolean cache )
+	{
+		synchronized ( locks[ frame - 1 ] )
+		{
+			final RandomAccessibleInterval< T > img = getImage( frame );
+			final SkeletonImage skeleton = SkeletonImage.wrap( img );
+			final Graph graph = cache ? frameCache.get( frame, skeleton ) : frameCache.peek( frame, skeleton );
+
+			if ( graph != null )
+				return graph;
+
+			if ( cache )
+				return analyze( frame, img );
+
+			return parent.analyzeNodes( img, frame );
+		}
+	}
+
+	/**
+	 * Analyzes the frame again, even if there is a cached graph.
+	 *
+	 * @param frame - 1-based
+	 * @return - the new graph
+	 */
+	public Graph analyze( final int frame )
+	{
+		synchronized ( locks[ frame - 1 ] )
+		{
+			return analyze( frame, getImage( frame ) );
+		}
+	}
+
+	/**
+	 * @param frame - 1-based
+	 * @return - if there is a graph in the cache (it might be outdated though)
+	 */
+	public boolean isCached( final int frame )
+	{
+		return frameCache.contains( frame );
+	}
+
+	protected Graph analyze( final int frame, final RandomAccessibleInterval< T > img )
+	{
+		final Graph graph = parent.analyzeNodes( img, frame );
+		frameCache.put( frame, graph, SkeletonImage.wrap( img ) );
+
+		return graph;
+	}
+}
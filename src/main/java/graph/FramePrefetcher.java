@@ -0,0 +1,174 @@
+package graph;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * Analyzes the frames around the one that is shown (t-k ... t+k) on a background thread and puts the result
+ * into the {@link FrameCache}, so that stepping through time can use them immediately.
+ *
+ * The frame that is shown is never analyzed in the background: before it is analyzed or edited in the UI,
+ * {@link #claim(int)} cancels a pending prefetch of it or waits until a running one is finished. Prefetches
+ * of frames that moved out of range are cancelled, the memory is bounded by the capacity of the cache.
+ */
+public class FramePrefetcher< T extends RealType< T > >
+{
+	final FrameGraphProvider< T > provider;
+	final int radius;
+
+	// one thread, so prefetching never competes with more than one core
+	final ExecutorService service;
+
+	// the prefetches that were submitted and are not finished yet
+	final HashMap< Integer, Future< ? > > pending = new HashMap< Integer, Future< ? > >();
+
+	// the frame that is shown, it belongs to the UI thread
+	volatile int shownFrame = -1;
+
+	/**
+	 * @param provider - analyzes the frames, its cache should hold more than 2*radius+1 frames
+	 * @param radius - how many frames before and after the shown one are analyzed
+	 */
+	public FramePrefetcher( final FrameGraphProvider< T > provider, final int radius )
+	{
+		this.provider = provider;
+		this.radius = radius;
+
+		this.service = Executors.newSingleThreadExecutor( r ->
+		{
+			final Thread thread = new Thread( r, "prefetch frames" );
+			thread.setDaemon( true );
+			thread.setPriority( Thread.MIN_PRIORITY );
+			return thread;
+		});
+	}
+
+	/**
+	 * Makes sure nothing runs in the background on this frame anymore, call before it is analyzed or edited.
+	 *
+	 * @param frame - the frame that is shown (1-based)
+	 */
+	public void claim( final int frame )
+	{
+		shownFrame = frame;
+
+		final Future< ? > future;
+
+		synchronized ( pending )
+		{
+			future = pending.remove( frame );
+		}
+
+		if ( future == null || future.cancel( false ) )
+			return;
+
+		// it is running already, let it finish, the result will be in the cache
+		try
+		{
+			future.get();
+		}
+		catch ( InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+		}
+		catch ( CancellationException | ExecutionException e ) {}
+	}
+
+	/**
+	 * Cancels the prefetches that are out of range and submits the missing ones, closest frames first.
+	 *
+	 * @param frame - the frame that is shown (1-based)
+	 */
+	public void prefetchAround( final int frame )
+	{
+		if ( radius <= 0 )
+			return;
+
+		synchronized ( pending )
+		{
+			for ( final Iterator< Map.Entry< Integer, Future< ? > > > it = pending.entrySet().iterator(); it.hasNext(); )
+			{
+				final Map.Entry< Integer, Future< ? > > entry = it.next();
+
+				if ( entry.getValue().isDone() || Math.abs( entry.getKey() - frame ) > radius )
+				{
+					entry.getValue().cancel( false );
+					it.remove();
+				}
+			}
+
+			for ( int d = 1; d <= radius; ++d )
+			{
+				submit( frame - d );
+				submit( frame + d );
+			}
+		}
+	}
+
+	protected void submit( final int frame )
+	{
+		if ( frame < 1 || frame > provider.numFrames() || pending.containsKey( frame ) || provider.isCached( frame ) )
+			return;
+
+		pending.put( frame, service.submit( () -> analyze( frame ) ) );
+	}
+
+	protected void analyze( final int frame )
+	{
+		// the user went there in the meantime
+		if ( frame == shownFrame )
+			return;
+
+		provider.getGraph( frame );
+
+		synchronized ( pending )
+		{
+			pending.remove( frame );
+		}
+	}
+
+	/**
+	 * Cancels all pending prefetches and waits until a running one is finished (e.g. before all frames are changed).
+	 */
+	public void cancelAll()
+	{
+		final Future< ? >[] futures;
+
+		synchronized ( pending )
+		{
+			futures = pending.values().toArray( new Future< ? >[ pending.size() ] );
+			pending.clear();
+		}
+
+		for ( final Future< ? > future : futures )
+		{
+			if ( future.cancel( false ) )
+				continue;
+
+			try
+			{
+				future.get();
+			}
+			catch ( InterruptedException e )
+			{
+				Thread.currentThread().interrupt();
+				return;
+			}
+			catch ( CancellationException | ExecutionException e ) {}
+		}
+	}
+
+	public void shutdown()
+	{
+		cancelAll();
+		service.shutdown();
+	}
+}
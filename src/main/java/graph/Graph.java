@@ -1,8 +1,353 @@
 package graph;
 
+import java.lang.ref.SoftReference;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
 
-public class Graph 
+/**
+ * All nodes of one frame and the edges between them, indexed by their pixel location so that
+ * {@link #getNode(int, int)} and {@link #getEdge(int, int)} are O(1).
+ */
+public class Graph implements Iterable< Node >
 {
+	final int width, height;
+
 	final ArrayList< Node > nodes = new ArrayList<Node>();
+	final PixelIndex< Node > index = new PixelIndex< Node >();
+
+	final ArrayList< Edge > edges = new ArrayList< Edge >();
+	final PixelIndex< Edge > edgeIndex = new PixelIndex< Edge >();
+
+	// the closest path pixel for every pixel, built when it is needed first and dropped when the graph or the
+	// pixels change; it is one int per pixel for each cached graph, so the garbage collector may drop it too if
+	// memory runs low
+	volatile SoftReference< NearestPixelMap > nearestPathPixels = null;
+
+	// the nodes by their number of edges, built when it is needed first and dropped when the nodes change
+	volatile NodeTree nodeTree = null;
+
+	public Graph( final int width, final int height )
+	{
+		this.width = width;
+		this.height = height;
+	}
+
+	public int getWidth() { return width; }
+	public int getHeight() { return height; }
+	public ArrayList< Node > getNodes() { return nodes; }
+	public int numNodes() { return nodes.size(); }
+	public ArrayList< Edge > getEdges() { return edges; }
+	public int numEdges() { return edges.size(); }
+
+	public void add( final Node node )
+	{
+		node.id = nodes.size();
+		nodes.add( node );
+		index.put( key( node.location[ 0 ], node.location[ 1 ] ), node );
+		nearestPathPixels = null;
+		nodeTree = null;
+	}
+
+	public void addAll( final Iterable< Node > nodes )
+	{
+		for ( final Node node : nodes )
+			add( node );
+	}
+
+	/**
+	 * Replaces all nodes and edges with the ones of another graph (e.g. after re-analyzing the image).
+	 *
+	 * @param other
+	 */
+	public void replaceWith( final Graph other )
+	{
+		clear();
+
+		for ( final Node node : other.nodes )
+		{
+			node.id = nodes.size();
+			nodes.add( node );
+			index.put( key( node.location[ 0 ], node.location[ 1 ] ), node );
+		}
+
+		// the nodes already know their edges
+		for ( final Edge edge : other.edges )
+			indexEdge( edge );
+
+		nearestPathPixels = null;
+		nodeTree = null;
+	}
+
+	/**
+	 * Removes a node and all its edges in O(1) per edge, the last node takes its place in the list.
+	 *
+	 * @param node
+	 * @return - true if the node was part of the graph
+	 */
+	public boolean remove( final Node node )
+	{
+		if ( node.id < 0 || node.id >= nodes.size() || nodes.get( node.id ) != node )
+			return false;
+
+		while ( !node.edges.isEmpty() )
+			removeEdge( node.edges.get( node.edges.size() - 1 ) );
+
+		final Node last = nodes.remove( nodes.size() - 1 );
+
+		if ( last != node )
+		{
+			last.id = node.id;
+			nodes.set( node.id, last );
+		}
+
+		node.id = -1;
+		index.remove( key( node.location[ 0 ], node.location[ 1 ] ) );
+		nearestPathPixels = null;
+		nodeTree = null;
+
+		return true;
+	}
+
+	/**
+	 * Adds an edge, its pixels point to it and both nodes are connected through it.
+	 *
+	 * @param edge
+	 */
+	public void addEdge( final Edge edge )
+	{
+		indexEdge( edge );
+		nearestPathPixels = null;
+
+		edge.node1.edges.add( edge );
+		edge.node1.connections.add( edge.node2 );
+		edge.node2.edges.add( edge );
+		edge.node2.connections.add( edge.node1 );
+	}
+
+	/**
+	 * Removes an edge in O(length), the last edge takes its place in the list.
+	 *
+	 * @param edge
+	 * @return - true if the edge was part of the graph
+	 */
+	public boolean removeEdge( final Edge edge )
+	{
+		if ( edge.id < 0 || edge.id >= edges.size() || edges.get( edge.id ) != edge )
+			return false;
+
+		final Edge last = edges.remove( edges.size() - 1 );
+
+		if ( last != edge )
+		{
+			last.id = edge.id;
+			edges.set( edge.id, last );
+		}
+
+		edge.id = -1;
+		nearestPathPixels = null;
+
+		for ( final int pixel : edge.pixels )
+			if ( edgeIndex.get( pixel ) == edge )
+				edgeIndex.remove( pixel );
+
+		disconnect( edge.node1, edge );
+		disconnect( edge.node2, edge );
+
+		return true;
+	}
+
+	public void clear()
+	{
+		for ( final Node node : nodes )
+		{
+			node.id = -1;
+			node.edges.clear();
+			node.connections.clear();
+		}
+
+		for ( final Edge edge : edges )
+			edge.id = -1;
+
+		nodes.clear();
+		index.clear();
+		edges.clear();
+		edgeIndex.clear();
+		nearestPathPixels = null;
+		nodeTree = null;
+	}
+
+	/**
+	 * Has to be called if the number of edges of a node changed, so that {@link #getNodeTree()} is rebuilt.
+	 */
+	public void numEdgesChanged()
+	{
+		nodeTree = null;
+	}
+
+	/**
+	 * @return - the edge without pixels that connects two adjacent nodes, or null
+	 */
+	public Edge getDirectEdge( final Node node1, final Node node2 )
+	{
+		for ( final Edge edge : node1.edges )
+			if ( edge.length() == 0 && edge.getOtherNode( node1 ) == node2 )
+				return edge;
+
+		return null;
+	}
+
+	public Node getNode( final int[] position ) { return getNode( position[ 0 ], position[ 1 ] ); }
+
+	public Node getNode( final int x, final int y )
+	{
+		if ( x < 0 || y < 0 || x >= width || y >= height )
+			return null;
+
+		return index.get( key( x, y ) );
+	}
+
+	/**
+	 * @return - the edge this pixel belongs to, null for nodes, background and untraced pixels
+	 */
+	public Edge getEdge( final int x, final int y )
+	{
+		if ( x < 0 || y < 0 || x >= width || y >= height )
+			return null;
+
+		return edgeIndex.get( key( x, y ) );
+	}
+
+	/**
+	 * Has to be called if pixels of the skeleton changed, so that {@link #getClosestPathPixel(SkeletonImage, int, int, double)}
+	 * sees them (changes of the nodes and edges are noticed by the graph itself).
+	 */
+	public void pixelsChanged()
+	{
+		nearestPathPixels = null;
+	}
+
+	/**
+	 * The closest pixel on a path between two nodes: a skeleton pixel with two neighbors that is not a node, no
+	 * matter if it belongs to a traced edge (closed loops without a node or edges that could not be traced are
+	 * found too). A single lookup once the {@link NearestPixelMap} of this graph is built (with the first call
+	 * after the graph or the pixels changed).
+	 *
+	 * @param skeleton - the pixels of the frame of this graph
+	 * @param x
+	 * @param y
+	 * @param radius - the largest distance
+	 * @return - the packed location (x + y * width) of the closest path pixel within the radius, or -1
+	 */
+	public int getClosestPathPixel( final SkeletonImage skeleton, final int x, final int y, final double radius )
+	{
+		return nearestPathPixels( skeleton ).get( x, y, radius );
+	}
+
+	protected synchronized NearestPixelMap nearestPathPixels( final SkeletonImage skeleton )
+	{
+		final SoftReference< NearestPixelMap > reference = nearestPathPixels;
+		NearestPixelMap map = reference == null ? null : reference.get();
+
+		if ( map == null )
+		{
+			int[] pixels = new int[ 1024 ];
+			int numPixels = 0;
+
+			for ( int y = 0; y < height; ++y )
+				for ( int x = 0; x < width; ++x )
+				{
+					if ( !skeleton.isSet( x, y ) || getNode( x, y ) != null || ComputeUnconnected.numNeighbors( skeleton, x, y ) != 2 )
+						continue;
+
+					if ( numPixels == pixels.length )
+						pixels = Arrays.copyOf( pixels, numPixels * 2 );
+
+					pixels[ numPixels++ ] = x + y * width;
+				}
+
+			map = new NearestPixelMap( width, height, pixels, numPixels );
+			nearestPathPixels = new SoftReference< NearestPixelMap >( map );
+		}
+
+		return map;
+	}
+
+	/**
+	 * @return - the KD-trees of the nodes by number of edges, built with the first call after the nodes changed
+	 */
+	public synchronized NodeTree getNodeTree()
+	{
+		NodeTree tree = nodeTree;
+
+		if ( tree == null )
+			nodeTree = tree = new NodeTree( nodes );
+
+		return tree;
+	}
+
+	/**
+	 * @param edge
+	 * @return - all pixels of the edge (excluding the nodes), from node1 to node2
+	 */
+	public Segment toSegment( final Edge edge )
+	{
+		final int[] xs = new int[ edge.pixels.length ];
+		final int[] ys = new int[ edge.pixels.length ];
+
+		unpack( edge, false, xs, ys );
+
+		return new Segment( xs, ys, edge.node1, edge.node2 );
+	}
+
+	/**
+	 * @param edge
+	 * @param from - the node to start at
+	 * @return - the path from one node to the other one (excluding the nodes), like
+	 * {@link ComputeUnconnected#findPathToNextNode(SkeletonImage, int[], Graph, int)} would trace it
+	 */
+	public PartialSegment toPartialSegment( final Edge edge, final Node from )
+	{
+		final int[] xs = new int[ edge.pixels.length ];
+		final int[] ys = new int[ edge.pixels.length ];
+
+		unpack( edge, from != edge.node1, xs, ys );
+
+		return new PartialSegment( xs, ys, edge.getOtherNode( from ) );
+	}
+
+	protected void unpack( final Edge edge, final boolean reverse, final int[] xs, final int[] ys )
+	{
+		for ( int i = 0; i < edge.pixels.length; ++i )
+		{
+			final int pixel = edge.pixels[ reverse ? edge.pixels.length - 1 - i : i ];
+			xs[ i ] = pixel % width;
+			ys[ i ] = pixel / width;
+		}
+	}
+
+	protected void indexEdge( final Edge edge )
+	{
+		edge.id = edges.size();
+		edges.add( edge );
+
+		for ( final int pixel : edge.pixels )
+			edgeIndex.put( pixel, edge );
+	}
+
+	protected static void disconnect( final Node node, final Edge edge )
+	{
+		final int i = node.edges.indexOf( edge );
+
+		if ( i >= 0 )
+		{
+			node.edges.remove( i );
+			node.connections.remove( i );
+		}
+	}
+
+	protected int key( final int x, final int y ) { return x + y * width; }
+
+	@Override
+	public Iterator< Node > iterator() { return nodes.iterator(); }
 }
@@ -0,0 +1,214 @@
+package graph;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import ij.IJ;
+import ij.ImagePlus;
+
+/**
+ * Cleans up the segmentation of a whole stack without a display (e.g. on a cluster node). All frames are
+ * processed in parallel, the cleaned stack and the graph statistics of every frame are written to disk,
+ * optionally also the track of every junction through the stack.
+ *
+ * Usage: java -cp ... graph.HeadlessRemoval input.tif output.tif [-c channel] [-x] [-t numThreads] [-s statistics.csv] [-sequential] [-j junctions.csv [-g]]
+ */
+public class HeadlessRemoval
+{
+	final ComputeUnconnected parent = new ComputeUnconnected();
+
+	// the segmentation channel (1-based), only used for multi-channel images
+	int channel = 1;
+
+	boolean removeDeadEnds = false;
+	int numThreads = Runtime.getRuntime().availableProcessors();
+
+	public HeadlessRemoval setChannel( final int channel ) { this.channel = channel; return this; }
+	public HeadlessRemoval setRemoveDeadEnds( final boolean removeDeadEnds ) { this.removeDeadEnds = removeDeadEnds; return this; }
+	public HeadlessRemoval setNumThreads( final int numThreads ) { this.numThreads = numThreads; return this; }
+	public HeadlessRemoval setParallelThinning( final boolean parallelThinning ) { parent.setParallelThinning( parallelThinning ); return this; }
+
+	/**
+	 * Removes redundant pixels, finds all nodes and optionally removes the dead ends of all frames,
+	 * the pixels of the {@link ImagePlus} are changed in place.
+	 *
+	 * @param imp
+	 * @return - the graph of each frame
+	 */
+	public Graph[] process( final ImagePlus imp )
+	{
+		// a plain stack is interpreted as a time series, like in loadFileAndStart
+		if ( imp.getNSlices() > 1 && imp.getNFrames() == 1 )
+			imp.setDimensions( imp.getNChannels(), 1, imp.getNSlices() );
+
+		if ( imp.getNSlices() > 1 || imp.getType() == ImagePlus.COLOR_RGB || imp.getType() == ImagePlus.COLOR_256 )
+			throw new IllegalArgumentException( "Only (multichannel) 2-d images and time series are supported, no 3-d stacks, RGB or 8-bit Color." );
+
+		if ( imp.getNChannels() > 1 && ( channel < 1 || channel > imp.getNChannels() ) )
+			throw new IllegalArgumentException( "Channel " + channel + " does not exist, the image has " + imp.getNChannels() + " channels." );
+
+		return parent.analyzeAllFrames( imp, imp.getNChannels() > 1 ? channel - 1 : -1, removeDeadEnds, numThreads );
+	}
+
+	/**
+	 * Writes one line per junction with its frame, location and track.
+	 *
+	 * @param tracker - after tracking
+	 * @param file
+	 * @throws IOException
+	 */
+	public static void writeJunctionTracks( final JunctionTracker tracker, final File file ) throws IOException
+	{
+		final PrintWriter out = new PrintWriter( file );
+
+		try
+		{
+			out.println( "frame,x,y,track" );
+
+			for ( int t = 1; t <= tracker.numFrames(); ++t )
+			{
+				final JunctionTracker.Junctions junctions = tracker.getJunctions( t );
+
+				if ( junctions == null )
+					continue;
+
+				for ( int i = 0; i < junctions.size(); ++i )
+					out.println( t + "," + junctions.getX( i ) + "," + junctions.getY( i ) + "," + junctions.getTrack( i ) );
+			}
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+
+	/**
+	 * Writes one line per frame with the number of nodes of each kind.
+	 *
+	 * @param graphs
+	 * @param file
+	 * @throws IOException
+	 */
+	public static void writeStatistics( final Graph[] graphs, final File file ) throws IOException
+	{
+		final PrintWriter out = new PrintWriter( file );
+
+		try
+		{
+			out.println( "frame,nodes,dead ends,left-over forks,3-way forks,4-way or more forks" );
+
+			for ( int t = 0; t < graphs.length; ++t )
+			{
+				final int[] count = ComputeUnconnected.countNodesPerNumEdges( graphs[ t ] );
+
+				int moreThan3 = 0;
+
+				for ( int i = 4; i < count.length; ++i )
+					moreThan3 += count[ i ];
+
+				out.println( ( t + 1 ) + "," + graphs[ t ].numNodes() + "," + count[ 1 ] + "," + count[ 2 ] + "," + ( count.length > 3 ? count[ 3 ] : 0 ) + "," + moreThan3 );
+			}
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+
+	protected static void printUsage()
+	{
+		System.out.println( "Usage: graph.HeadlessRemoval input.tif output.tif [options]" );
+		System.out.println( "  -c <channel>     binary channel with the segmentation (1-based, default: 1)" );
+		System.out.println( "  -x               remove all dead ends" );
+		System.out.println( "  -t <numThreads>  number of frames processed in parallel (default: number of cores)" );
+		System.out.println( "  -s <file.csv>    where to write the graph statistics (default: output.tif.csv)" );
+		System.out.println( "  -sequential      remove redundant pixels with the original sequential scan (instead of parallel subfields)" );
+		System.out.println( "  -j <file.csv>    track all junctions and write the track of each one" );
+		System.out.println( "  -g               link the junctions of each frame globally (linear assignment) instead of the closest first" );
+	}
+
+	public static void main( final String[] args )
+	{
+		System.setProperty( "java.awt.headless", "true" );
+
+		if ( args.length < 2 )
+		{
+			printUsage();
+			System.exit( 1 );
+		}
+
+		final HeadlessRemoval removal = new HeadlessRemoval();
+		final String input = args[ 0 ];
+		final String output = args[ 1 ];
+		String statistics = output + ".csv";
+		String junctionTracks = null;
+		boolean globalLinking = false;
+
+		try
+		{
+			for ( int i = 2; i < args.length; ++i )
+			{
+				if ( args[ i ].equals( "-c" ) )
+					removal.setChannel( Integer.parseInt( args[ ++i ] ) );
+				else if ( args[ i ].equals( "-x" ) )
+					removal.setRemoveDeadEnds( true );
+				else if ( args[ i ].equals( "-t" ) )
+					removal.setNumThreads( Integer.parseInt( args[ ++i ] ) );
+				else if ( args[ i ].equals( "-s" ) )
+					statistics = args[ ++i ];
+				else if ( args[ i ].equals( "-sequential" ) )
+					removal.setParallelThinning( false );
+				else if ( args[ i ].equals( "-j" ) )
+					junctionTracks = args[ ++i ];
+				else if ( args[ i ].equals( "-g" ) )
+					globalLinking = true;
+				else
+					throw new IllegalArgumentException( "Unknown option: " + args[ i ] );
+			}
+		}
+		catch ( Exception e )
+		{
+			System.out.println( e.getMessage() );
+			printUsage();
+			System.exit( 1 );
+		}
+
+		final ImagePlus imp = IJ.openImage( input );
+
+		if ( imp == null )
+		{
+			System.out.println( "Could not open '" + input + "'." );
+			System.exit( 1 );
+		}
+
+		try
+		{
+			final long time = System.currentTimeMillis();
+
+			final Graph[] graphs = removal.process( imp );
+
+			if ( !IJ.saveAsTiff( imp, output ) )
+				throw new IOException( "Could not save '" + output + "'." );
+
+			writeStatistics( graphs, new File( statistics ) );
+
+			if ( junctionTracks != null )
+			{
+				final JunctionTracker tracker = new JunctionTracker( graphs.length ).setGlobalLinking( globalLinking );
+				tracker.track( graphs );
+
+				writeJunctionTracks( tracker, new File( junctionTracks ) );
+
+				System.out.println( "Tracked " + tracker.numTracks() + " junction(s)." );
+			}
+
+			System.out.println( "Processed " + graphs.length + " frame(s) in " + ( System.currentTimeMillis() - time ) + " ms." );
+		}
+		catch ( Exception e )
+		{
+			e.printStackTrace();
+			System.exit( 1 );
+		}
+	}
+}
@@ -0,0 +1,401 @@
+package graph;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import ij.IJ;
+import net.imglib2.RealPoint;
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * Follows all junctions (nodes with at least {@link #minEdges} edges) of a movie through time in a single pass
+ * over the frames. The junctions of each frame are linked to the tracks that were seen in one of the last
+ * {@link #maxGap} + 1 frames: the candidates of a track are the junctions within {@link #searchRadius} of its
+ * last location (found in the {@link NodeTree} of the frame), the cheapest links are made first (continuous
+ * tracks before the ones that close a gap, closer junctions before farther ones). A junction that is not
+ * linked starts a new track, a track that was not seen for more than maxGap frames ends.
+ *
+ * With global linking the links of each frame are chosen together instead, so that as many tracks as possible
+ * are continued and among those choices the sum of the costs is minimal ({@link LinearAssignment} on the sparse
+ * matrix of all candidates): when many junctions move together a greedy choice often takes the neighbor of a
+ * junction and leaves it with no or a worse match.
+ *
+ * The graphs come from a {@link FrameGraphProvider} (analyzed while tracking) or were analyzed elsewhere.
+ */
+public class JunctionTracker
+{
+	// how far (in pixels) a junction may move from the last frame it was seen in
+	public static double searchRadius = 10;
+
+	// for how many frames a junction may be missing
+	public static int maxGap = 2;
+
+	// which nodes are junctions
+	public static int minEdges = 3;
+
+	/**
+	 * The junctions of one frame and the track each one belongs to.
+	 */
+	public static class Junctions
+	{
+		final int[] x, y, track;
+
+		public Junctions( final int size )
+		{
+			this.x = new int[ size ];
+			this.y = new int[ size ];
+			this.track = new int[ size ];
+		}
+
+		public int size() { return x.length; }
+		public int getX( final int i ) { return x[ i ]; }
+		public int getY( final int i ) { return y[ i ]; }
+		public int getTrack( final int i ) { return track[ i ]; }
+	}
+
+	/**
+	 * A track that can still be continued and a junction it may be continued with.
+	 */
+	protected static class Link implements Comparable< Link >
+	{
+		final int open, junction;
+		final double cost;
+
+		public Link( final int open, final int junction, final double cost )
+		{
+			this.open = open;
+			this.junction = junction;
+			this.cost = cost;
+		}
+
+		@Override
+		public int compareTo( final Link other ) { return Double.compare( cost, other.cost ); }
+	}
+
+	// for each frame its junctions, null if it was not tracked
+	final Junctions[] junctions;
+
+	int numTracks = 0;
+
+	// link all junctions of a frame at once instead of the closest ones first
+	boolean globalLinking = false;
+
+	// the tracks that can still be continued: their index, last location and the frame it is from
+	final ArrayList< int[] > open = new ArrayList< int[] >();
+
+	// reused for every frame
+	final ArrayList< Link > links = new ArrayList< Link >();
+	final ArrayList< Node > candidates = new ArrayList< Node >();
+	final RealPoint location = new RealPoint( 2 );
+
+	/**
+	 * @param numFrames - of the movie
+	 */
+	public JunctionTracker( final int numFrames )
+	{
+		this.junctions = new Junctions[ numFrames ];
+	}
+
+	public int numTracks() { return numTracks; }
+	public int numFrames() { return junctions.length; }
+	public boolean isGlobalLinking() { return globalLinking; }
+	public JunctionTracker setGlobalLinking( final boolean globalLinking ) { this.globalLinking = globalLinking; return this; }
+
+	/**
+	 * @param frame - 1-based
+	 * @return - the junctions of this frame, or null if it was not tracked
+	 */
+	public Junctions getJunctions( final int frame ) { return junctions[ frame - 1 ]; }
+
+	public void clear()
+	{
+		for ( int t = 0; t < junctions.length; ++t )
+			junctions[ t ] = null;
+
+		numTracks = 0;
+		open.clear();
+	}
+
+	/**
+	 * @param track
+	 * @param frame - 1-based
+	 * @return - the location of the junction of this track in this frame, or null if it is missing
+	 */
+	public int[] getLocation( final int track, final int frame )
+	{
+		final Junctions frameJunctions = junctions[ frame - 1 ];
+
+		if ( frameJunctions != null )
+			for ( int i = 0; i < frameJunctions.size(); ++i )
+				if ( frameJunctions.track[ i ] == track )
+					return new int[]{ frameJunctions.x[ i ], frameJunctions.y[ i ] };
+
+		return null;
+	}
+
+	/**
+	 * @param frame - 1-based
+	 * @param x
+	 * @param y
+	 * @param maxDistance
+	 * @return - the track of the closest junction of this frame within maxDistance, or -1
+	 */
+	public int findTrack( final int frame, final int x, final int y, final double maxDistance )
+	{
+		final Junctions frameJunctions = junctions[ frame - 1 ];
+
+		if ( frameJunctions == null )
+			return -1;
+
+		int track = -1;
+		double minSquareDistance = maxDistance * maxDistance;
+
+		for ( int i = 0; i < frameJunctions.size(); ++i )
+		{
+			final double dx = frameJunctions.x[ i ] - x;
+			final double dy = frameJunctions.y[ i ] - y;
+
+			if ( dx * dx + dy * dy <= minSquareDistance )
+			{
+				minSquareDistance = dx * dx + dy * dy;
+				track = frameJunctions.track[ i ];
+			}
+		}
+
+		return track;
+	}
+
+	/**
+	 * Tracks all junctions of all frames, the next frame is analyzed on a helper thread of the worker while the
+	 * current one is linked.
+	 *
+	 * @param frames - the graphs of the movie
+	 * @param worker
+	 * @param job - to report the progress and to stop if it was cancelled
+	 * @return - false if it was cancelled or failed
+	 */
+	public < T extends RealType< T > > boolean track( final FrameGraphProvider< T > frames, final Worker worker, final Worker.Job job )
+	{
+		if ( frames.numFrames() != junctions.length )
+			throw new IllegalArgumentException( "The tracker is for " + junctions.length + " frames, the movie has " + frames.numFrames() );
+
+		clear();
+
+		final int numFrames = frames.numFrames();
+		job.setTotal( numFrames );
+
+		// does not replace the cached frames around the shown one
+		Future< Graph > next = worker.fork( () -> frames.getGraph( 1, false ) );
+
+		for ( int t = 1; t <= numFrames; ++t )
+		{
+			final Graph nodes;
+
+			try
+			{
+				nodes = next.get();
+			}
+			catch ( InterruptedException | ExecutionException e )
+			{
+				IJ.log( "Could not analyze frame " + t + " for junction tracking: " + e );
+				return false;
+			}
+
+			if ( job.isCancelled() )
+				return false;
+
+			if ( t < numFrames )
+			{
+				final int nextFrame = t + 1;
+				next = worker.fork( () -> frames.getGraph( nextFrame, false ) );
+			}
+
+			job.step();
+
+			addFrame( t, nodes );
+		}
+
+		return true;
+	}
+
+	/**
+	 * Tracks all junctions of graphs that were analyzed already (e.g. by
+	 * {@link ComputeUnconnected#analyzeAllFrames(ij.ImagePlus, int, boolean, int)}).
+	 *
+	 * @param graphs - the graph of each frame
+	 */
+	public void track( final Graph[] graphs )
+	{
+		if ( graphs.length != junctions.length )
+			throw new IllegalArgumentException( "The tracker is for " + junctions.length + " frames, there are " + graphs.length + " graphs" );
+
+		clear();
+
+		for ( int t = 1; t <= graphs.length; ++t )
+			addFrame( t, graphs[ t - 1 ] );
+	}
+
+	/**
+	 * Links the junctions of the next frame to the tracks.
+	 *
+	 * @param t - the frame (1-based), one after the other
+	 * @param nodes - its graph
+	 */
+	protected void addFrame( final int t, final Graph nodes )
+	{
+		// the junctions of this frame, numbered by the id of their node
+		final int[] junctionOfNode = new int[ nodes.numNodes() ];
+		int numJunctions = 0;
+
+		for ( final Node node : nodes )
+			junctionOfNode[ node.id ] = node.numEdges >= minEdges ? numJunctions++ : -1;
+
+		final Junctions frameJunctions = junctions[ t - 1 ] = new Junctions( numJunctions );
+
+		for ( final Node node : nodes )
+		{
+			final int j = junctionOfNode[ node.id ];
+
+			if ( j >= 0 )
+			{
+				frameJunctions.x[ j ] = node.getPosition()[ 0 ];
+				frameJunctions.y[ j ] = node.getPosition()[ 1 ];
+			}
+		}
+
+		// the tracks that were missing for too long end
+		for ( int i = open.size() - 1; i >= 0; --i )
+		{
+			if ( t - open.get( i )[ 3 ] - 1 > maxGap )
+			{
+				final int[] last = open.remove( open.size() - 1 );
+
+				if ( i < open.size() )
+					open.set( i, last );
+			}
+		}
+
+		// all junctions within the radius of the open tracks
+		links.clear();
+
+		if ( numJunctions > 0 )
+		{
+			final NodeTree tree = nodes.getNodeTree();
+
+			for ( int i = 0; i < open.size(); ++i )
+			{
+				final int[] o = open.get( i );
+				location.setPosition( o[ 1 ], 0 );
+				location.setPosition( o[ 2 ], 1 );
+
+				candidates.clear();
+				tree.findAll( location, minEdges, NodeTree.MAX_EDGES, searchRadius, candidates );
+
+				for ( final Node node : candidates )
+				{
+					final double dx = node.getPosition()[ 0 ] - o[ 1 ];
+					final double dy = node.getPosition()[ 1 ] - o[ 2 ];
+
+					links.add( new Link( i, junctionOfNode[ node.id ], cost( dx * dx + dy * dy, t - o[ 3 ] - 1 ) ) );
+				}
+			}
+		}
+
+		final int[] openOfJunction = new int[ numJunctions ];
+
+		if ( globalLinking )
+			linkGlobally( open.size(), links, openOfJunction );
+		else
+			link( open.size(), links, openOfJunction );
+
+		// continue the linked tracks, the others start a new one
+		for ( int j = 0; j < numJunctions; ++j )
+		{
+			if ( openOfJunction[ j ] >= 0 )
+			{
+				final int[] o = open.get( openOfJunction[ j ] );
+				frameJunctions.track[ j ] = o[ 0 ];
+				o[ 1 ] = frameJunctions.x[ j ];
+				o[ 2 ] = frameJunctions.y[ j ];
+				o[ 3 ] = t;
+			}
+			else
+			{
+				frameJunctions.track[ j ] = numTracks++;
+				open.add( new int[]{ frameJunctions.track[ j ], frameJunctions.x[ j ], frameJunctions.y[ j ], t } );
+			}
+		}
+	}
+
+	/**
+	 * Assigns the junctions of a frame to the open tracks, the cheapest links first. Every track and every
+	 * junction is used at most once.
+	 *
+	 * @param numOpen - how many tracks can be continued
+	 * @param links - all possible links
+	 * @param openOfJunction - filled with the open track each junction is linked to, or -1
+	 */
+	protected void link( final int numOpen, final ArrayList< Link > links, final int[] openOfJunction )
+	{
+		Collections.sort( links );
+
+		final boolean[] linked = new boolean[ numOpen ];
+		Arrays.fill( openOfJunction, -1 );
+
+		for ( final Link link : links )
+		{
+			if ( linked[ link.open ] || openOfJunction[ link.junction ] >= 0 )
+				continue;
+
+			linked[ link.open ] = true;
+			openOfJunction[ link.junction ] = link.open;
+		}
+	}
+
+	/**
+	 * Assigns the junctions of a frame to the open tracks so that as many as possible are linked and, among
+	 * those assignments, the sum of the costs of the links is minimal.
+	 *
+	 * @param numOpen - how many tracks can be continued
+	 * @param links - all possible links
+	 * @param openOfJunction - filled with the open track each junction is linked to, or -1
+	 */
+	protected void linkGlobally( final int numOpen, final ArrayList< Link > links, final int[] openOfJunction )
+	{
+		final int[] rows = new int[ links.size() ];
+		final int[] columns = new int[ links.size() ];
+		final double[] costs = new double[ links.size() ];
+
+		for ( int l = 0; l < links.size(); ++l )
+		{
+			rows[ l ] = links.get( l ).open;
+			columns[ l ] = links.get( l ).junction;
+			costs[ l ] = links.get( l ).cost;
+		}
+
+		// more expensive than all links together, so linking one more track always pays off
+		final double unlinkedCost = Math.max( 1, numOpen ) * cost( searchRadius * searchRadius, maxGap ) + 1;
+
+		final LinearAssignment assignment = new LinearAssignment( numOpen, openOfJunction.length, rows, columns, costs, links.size(), unlinkedCost );
+		assignment.solve();
+
+		Arrays.fill( openOfJunction, -1 );
+
+		for ( int i = 0; i < numOpen; ++i )
+			if ( assignment.getColumn( i ) >= 0 )
+				openOfJunction[ assignment.getColumn( i ) ] = i;
+	}
+
+	/**
+	 * @param squareDistance - between the last location of the track and the junction
+	 * @param gap - for how many frames the track was missing
+	 * @return - the cost of the link, a link over a gap is more expensive than any link without one
+	 */
+	protected static double cost( final double squareDistance, final int gap )
+	{
+		return squareDistance + gap * searchRadius * searchRadius;
+	}
+}
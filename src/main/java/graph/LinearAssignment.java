@@ -0,0 +1,305 @@
+package graph;
+
+import java.util.Arrays;
+
+/**
+ * Solves the linear assignment problem on a sparse cost matrix: every row is assigned to at most one column
+ * and every column to at most one row so that the sum of the costs plus a fixed cost for each row that is not
+ * assigned is minimal. Only the given entries of the matrix can be assigned.
+ *
+ * It is the shortest augmenting path method of Jonker &amp; Volgenant on sparse input: rows are initialized
+ * with their cheapest column if it is free, the others are assigned one by one along the shortest path in
+ * reduced costs (Dijkstra with column potentials). Each row has a private dummy column with the cost of not
+ * being assigned, so a search never needs to look further than that, and it only touches the columns that
+ * are reachable from the row, which keeps it fast for the mostly local problems of tracking.
+ */
+public class LinearAssignment
+{
+	final int numRows, numColumns;
+
+	// the entries of each row (compressed sparse rows), followed by the dummy column of the row
+	final int[] rowStart, column, rowOfEntry;
+	final double[] cost;
+
+	// the column potentials, the dummy column of row i is numColumns + i
+	final double[] v;
+
+	// the entry each row is assigned to, the row each column is assigned to (-1 if none)
+	final int[] entryOfRow, rowOfColumn;
+
+	// the shortest path search: the distance of each column and the entry it is reached through
+	final double[] distance;
+	final int[] predecessor;
+	final boolean[] done;
+
+	// the columns reached by a search, they are marked with its number
+	final int[] touched, visited;
+	int numTouched = 0, search = 0;
+
+	final Heap heap;
+
+	/**
+	 * @param numRows
+	 * @param numColumns
+	 * @param rows - the row of each entry
+	 * @param columns - the column of each entry
+	 * @param costs - the cost of each entry
+	 * @param numEntries - how many entries there are
+	 * @param unassignedCost - the cost of a row that is not assigned; to assign as many rows as possible it has to
+	 * be larger than numRows times the largest cost of an entry (larger than the cost of every entry is not enough,
+	 * two cheap entries can then win over one row less that is not assigned)
+	 */
+	public LinearAssignment( final int numRows, final int numColumns, final int[] rows, final int[] columns, final double[] costs, final int numEntries, final double unassignedCost )
+	{
+		this.numRows = numRows;
+		this.numColumns = numColumns;
+
+		// sort the entries by row
+		this.rowStart = new int[ numRows + 1 ];
+
+		for ( int e = 0; e < numEntries; ++e )
+			++rowStart[ rows[ e ] + 1 ];
+
+		for ( int i = 0; i < numRows; ++i )
+			rowStart[ i + 1 ] += rowStart[ i ] + 1;
+
+		this.column = new int[ numEntries + numRows ];
+		this.rowOfEntry = new int[ numEntries + numRows ];
+		this.cost = new double[ numEntries + numRows ];
+
+		final int[] next = Arrays.copyOf( rowStart, numRows );
+
+		for ( int e = 0; e < numEntries; ++e )
+		{
+			final int k = next[ rows[ e ] ]++;
+			column[ k ] = columns[ e ];
+			rowOfEntry[ k ] = rows[ e ];
+			cost[ k ] = costs[ e ];
+		}
+
+		for ( int i = 0; i < numRows; ++i )
+		{
+			final int k = rowStart[ i + 1 ] - 1;
+			column[ k ] = numColumns + i;
+			rowOfEntry[ k ] = i;
+			cost[ k ] = unassignedCost;
+		}
+
+		final int n = numColumns + numRows;
+
+		this.v = new double[ n ];
+		this.entryOfRow = new int[ numRows ];
+		this.rowOfColumn = new int[ n ];
+		this.distance = new double[ n ];
+		this.predecessor = new int[ n ];
+		this.done = new boolean[ n ];
+		this.touched = new int[ n ];
+		this.visited = new int[ n ];
+		this.heap = new Heap( n );
+
+		Arrays.fill( entryOfRow, -1 );
+		Arrays.fill( rowOfColumn, -1 );
+	}
+
+	/**
+	 * @return - the total cost of the assignment
+	 */
+	public double solve()
+	{
+		// with all potentials at 0 a row can take its cheapest column right away
+		for ( int i = 0; i < numRows; ++i )
+		{
+			int best = rowStart[ i ];
+
+			for ( int k = rowStart[ i ] + 1; k < rowStart[ i + 1 ]; ++k )
+				if ( cost[ k ] < cost[ best ] )
+					best = k;
+
+			if ( rowOfColumn[ column[ best ] ] < 0 )
+				assign( best );
+		}
+
+		for ( int i = 0; i < numRows; ++i )
+			if ( entryOfRow[ i ] < 0 )
+				augment( i );
+
+		double total = 0;
+
+		for ( int i = 0; i < numRows; ++i )
+			total += cost[ entryOfRow[ i ] ];
+
+		return total;
+	}
+
+	/**
+	 * @param row
+	 * @return - the column the row is assigned to, or -1 if it is not assigned
+	 */
+	public int getColumn( final int row )
+	{
+		final int j = entryOfRow[ row ] < 0 ? -1 : column[ entryOfRow[ row ] ];
+
+		return j < numColumns ? j : -1;
+	}
+
+	protected void assign( final int entry )
+	{
+		entryOfRow[ rowOfEntry[ entry ] ] = entry;
+		rowOfColumn[ column[ entry ] ] = rowOfEntry[ entry ];
+	}
+
+	// assigns a free row along the shortest augmenting path
+	protected void augment( final int row )
+	{
+		++search;
+		numTouched = 0;
+		heap.clear();
+
+		relax( row, 0, 0 );
+
+		int free = -1;
+
+		while ( free < 0 )
+		{
+			final int j = heap.poll();
+
+			if ( done[ j ] )
+				continue;
+
+			done[ j ] = true;
+
+			if ( rowOfColumn[ j ] < 0 )
+				free = j;
+			else
+				relax( rowOfColumn[ j ], distance[ j ], cost[ entryOfRow[ rowOfColumn[ j ] ] ] - v[ j ] );
+		}
+
+		// keep the reduced costs non-negative
+		final double shortest = distance[ free ];
+
+		for ( int t = 0; t < numTouched; ++t )
+		{
+			final int j = touched[ t ];
+
+			if ( done[ j ] )
+				v[ j ] += distance[ j ] - shortest;
+
+			done[ j ] = false;
+		}
+
+		// flip the assignments along the path back to the row
+		int j = free;
+
+		while ( true )
+		{
+			final int entry = predecessor[ j ];
+			final int i = rowOfEntry[ entry ];
+			final int previous = entryOfRow[ i ];
+
+			assign( entry );
+
+			if ( i == row )
+				break;
+
+			j = column[ previous ];
+		}
+	}
+
+	/**
+	 * Updates the distances of all columns of a row.
+	 *
+	 * @param row
+	 * @param reached - the distance of the row
+	 * @param u - the potential of the row (its assigned column has a reduced cost of 0)
+	 */
+	protected void relax( final int row, final double reached, final double u )
+	{
+		for ( int k = rowStart[ row ]; k < rowStart[ row + 1 ]; ++k )
+		{
+			final int j = column[ k ];
+			final double d = reached + cost[ k ] - u - v[ j ];
+
+			if ( visited[ j ] != search )
+			{
+				visited[ j ] = search;
+				touched[ numTouched++ ] = j;
+			}
+			else if ( done[ j ] || d >= distance[ j ] )
+			{
+				continue;
+			}
+
+			distance[ j ] = d;
+			predecessor[ j ] = k;
+			heap.add( j, d );
+		}
+	}
+
+	/**
+	 * A binary min-heap of columns, a column can be in it more than once (the outdated ones are skipped).
+	 */
+	protected static class Heap
+	{
+		int[] items;
+		double[] keys;
+		int size = 0;
+
+		public Heap( final int capacity )
+		{
+			this.items = new int[ Math.max( 1, capacity ) ];
+			this.keys = new double[ Math.max( 1, capacity ) ];
+		}
+
+		public void clear() { size = 0; }
+
+		public void add( final int item, final double key )
+		{
+			if ( size == items.length )
+			{
+				items = Arrays.copyOf( items, size * 2 );
+				keys = Arrays.copyOf( keys, size * 2 );
+			}
+
+			int i = size++;
+
+			while ( i > 0 && keys[ ( i - 1 ) / 2 ] > key )
+			{
+				items[ i ] = items[ ( i - 1 ) / 2 ];
+				keys[ i ] = keys[ ( i - 1 ) / 2 ];
+				i = ( i - 1 ) / 2;
+			}
+
+			items[ i ] = item;
+			keys[ i ] = key;
+		}
+
+		public int poll()
+		{
+			final int first = items[ 0 ];
+			final int lastItem = items[ --size ];
+			final double lastKey = keys[ size ];
+
+			int i = 0;
+
+			while ( 2 * i + 1 < size )
+			{
+				int child = 2 * i + 1;
+
+				if ( child + 1 < size && keys[ child + 1 ] < keys[ child ] )
+					++child;
+
+				if ( keys[ child ] >= lastKey )
+					break;
+
+				items[ i ] = items[ child ];
+				keys[ i ] = keys[ child ];
+				i = child;
+			}
+
+			items[ i ] = lastItem;
+			keys[ i ] = lastKey;
+
+			return first;
+		}
+	}
+}
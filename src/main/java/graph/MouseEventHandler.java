@@ -6,11 +6,11 @@ import java.awt.event.KeyListener;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseListener;
 import java.awt.event.MouseMotionListener;
-import java.util.ArrayList;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
 import javax.swing.SwingUtilities;
+import javax.swing.Timer;
 
 import fiji.tool.AbstractTool;
 import fiji.tool.SliceListener;
@@ -20,15 +20,14 @@ import ij.ImagePlus;
 import ij.gui.ImageCanvas;
 import ij.gui.OvalRoi;
 import ij.gui.Overlay;
+import ij.gui.PointRoi;
 import ij.gui.PolygonRoi;
+import ij.gui.Roi;
 import ij.gui.TextRoi;
 import ij.plugin.frame.RoiManager;
-import mpicbg.imglib.cursor.LocalizableByDimCursor;
-import mpicbg.imglib.image.Image;
-import mpicbg.imglib.image.display.imagej.ImageJFunctions;
-import mpicbg.imglib.multithreading.SimpleMultiThreading;
-import mpicbg.imglib.outofbounds.OutOfBoundsStrategyValueFactory;
-import mpicbg.imglib.type.numeric.RealType;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
 
 /**
  * Handles mouse & key events
@@ -45,27 +44,94 @@ public class MouseEventHandler< T extends RealType< T > > extends AbstractTool i
 	final int channel;
 	final SliceObserver sliceObserver;
 
-	// the currently visible frame
-	Image< T > img;
+	/**
+	 * A frame with its pixels and graph. Jobs take the one that is shown when they are started, so they keep
+	 * working on it even if the user goes to another frame before they run.
+	 */
+	protected class ShownFrame
+	{
+		final int frame;
+		final RandomAccessibleInterval< T > img;
+		final SkeletonImage skeleton;
+		final Graph nodes;
+
+		public ShownFrame( final int frame, final RandomAccessibleInterval< T > img, final SkeletonImage skeleton, final Graph nodes )
+		{
+			this.frame = frame;
+			this.img = img;
+			this.skeleton = skeleton;
+			this.nodes = nodes;
+		}
+	}
 
-	LocalizableByDimCursor< T > randomAccess;
-	int currentFrame;
-	ArrayList< Node > nodes;
-	//KDTree< Node > nodeTree;
+	// the currently visible frame (changed together by updateSource)
+	volatile RandomAccessibleInterval< T > img;
+
+	volatile SkeletonImage skeleton;
+	volatile int currentFrame;
+	volatile Graph nodes;
 	
+	// the selected segment and the frame it was selected in
 	Segment segment = null;
+	ShownFrame segmentFrame = null;
 	int x = 0, y = 0;
-	boolean holdingKeyF = false;
+	boolean holdingKeyF = false, holdingKeyE = false;
 	int xd = -1, yd = -1;
 
+	// paints ('f') or erases ('e') while the mouse moves, knows which part of the image changed
+	final Brush brush = new Brush();
+
+	// the frame the current stroke paints into, null if none
+	ShownFrame painting = null;
+
+	// the bounding box of all pixels painted since the last repaint
+	int damageMinX = Integer.MAX_VALUE, damageMinY = Integer.MAX_VALUE, damageMaxX = -1, damageMaxY = -1;
+
+	// minimal time between two repaints while painting (60 Hz)
+	public static int repaintIntervalMillis = 16;
+
+	long lastRepaint = 0;
+
+	// repaints once the interval is over if mouse events came in faster (runs on the event dispatch thread)
+	final Timer repaintTimer = new Timer( repaintIntervalMillis, e -> repaintDamaged() );
+
 	boolean trackingMode = false;
 	TrackingStatus trackingInitialized = TrackingStatus.NOT_INITIALIZED;
 
-	// the location of the tracked segment in each frame
-	final Segment[] segmentLocationPerFrame;
+	// the location of the tracked segments in each frame
+	final SegmentTracker< T > tracker;
 
-	// the location of the tracked node in each frame
-	//final int[][] nodeLocationPerFrame;
+	// the track that is corrected by a click
+	int selectedTrack = 0;
+
+	// all junctions (nodes with 3 or more edges) of the movie, tracked in one pass ('j')
+	final JunctionTracker junctionTracker;
+
+	// shows and measures the junction tracks instead of the segment tracks
+	boolean junctionMode = false;
+
+	// while the junctions are tracked they can not be selected or measured
+	volatile boolean trackingJunctions = false;
+
+	// the junction track that is selected by a click, -1 if none
+	int selectedJunction = -1;
+
+	// how many analyzed frames are remembered
+	public static int frameCacheSize = 64;
+
+	// the analyzed graphs of the recently visited and tracked frames
+	final FrameCache frameCache = new FrameCache( frameCacheSize );
+
+	// pixels and graphs of all frames, without changing the one that is shown
+	final FrameGraphProvider< T > frames;
+
+	// how many frames before and after the current one are analyzed in the background
+	public static int prefetchRadius = 3;
+
+	final FramePrefetcher< T > prefetcher;
+
+	// runs clicks, tracking and edits one after the other
+	final Worker worker = new Worker( "JET worker" );
 	
 	public MouseEventHandler( final ImagePlus imp, final int channel, final ComputeUnconnected parent ) 
 	{ 
@@ -73,13 +139,14 @@ public class MouseEventHandler< T extends RealType< T > > extends AbstractTool i
 		this.channel = channel;
 		this.canvas = imp.getCanvas();
 		this.parent = parent;
+		this.frames = new FrameGraphProvider< T >( parent, imp, channel, frameCache );
+		this.prefetcher = new FramePrefetcher< T >( frames, Math.min( prefetchRadius, ( frameCacheSize - 1 ) / 2 ) );
+		this.tracker = new SegmentTracker< T >( parent, frames );
+		this.junctionTracker = new JunctionTracker( frames.numFrames() );
 		
 		updateSource();
 		imp.getWindow().toFront();
 
-		//this.nodeLocationPerFrame = new int[ imp.getNFrames() ][ 2 ];
-		this.segmentLocationPerFrame = new Segment[ imp.getNFrames() ];
-
 		this.sliceObserver = new SliceObserver( imp, new ImagePlusListener() );
 		this.clearToolsIfNecessary = true;
 		
@@ -89,25 +156,86 @@ public class MouseEventHandler< T extends RealType< T > > extends AbstractTool i
 	
 	protected void updateSource()
 	{
-		currentFrame = imp.getFrame();
-		
-		if ( imp.getNChannels() == 1 && imp.getNFrames() == 1 )
-			img = ImageJFunctions.wrap( imp );
-		else
-			img = ImageJFunctions.wrap( new ImagePlus( "wrapped", imp.getStack().getProcessor( imp.getStackIndex( channel + 1, 1, currentFrame ) ) ) );
+		final int frame = imp.getFrame();
 		
-		this.randomAccess = img.createLocalizableByDimCursor();
+		final RandomAccessibleInterval< T > frameImg = ComputeUnconnected.wrapFrame( imp, channel, frame );
 		
-		this.nodes = parent.analyzeNodes( img, currentFrame );
-		
-		//if ( trackingMode )
-		//	this.nodeTree = new KDTree<Node>( nodes, nodes );
-		//else
-		//	this.nodeTree = null;
+		final Graph graph = analyzeFrame( frame, false );
+
+		synchronized ( this )
+		{
+			// another call for the frame that is shown now was faster
+			if ( frame != imp.getFrame() && nodes != null )
+				return;
+
+			this.currentFrame = frame;
+			this.img = frameImg;
+			this.skeleton = SkeletonImage.wrap( frameImg );
+			this.nodes = graph;
+
+			dropOutdatedSelection( frame, graph );
+		}
+
+		prefetcher.prefetchAround( frame );
 		
 		imp.updateAndDraw();
 		displayAllInformation();
 	}
+
+	/**
+	 * Replaces the graph of the shown frame (e.g. after analyzing it again), unless another frame is shown by now.
+	 *
+	 * @param frame - 1-based
+	 * @param graph
+	 */
+	protected synchronized void setGraph( final int frame, final Graph graph )
+	{
+		if ( currentFrame == frame )
+			nodes = graph;
+
+		dropOutdatedSelection( frame, graph );
+	}
+
+	/**
+	 * A selected segment belongs to the graph it was selected in, it can not be deleted once the frame has a new one.
+	 *
+	 * @param frame - 1-based
+	 * @param graph - the new graph of the frame
+	 */
+	protected synchronized void dropOutdatedSelection( final int frame, final Graph graph )
+	{
+		if ( segmentFrame != null && segmentFrame.frame == frame && segmentFrame.nodes != graph )
+			select( null, null );
+	}
+
+	protected synchronized void select( final Segment segment, final ShownFrame frame )
+	{
+		this.segment = segment;
+		this.segmentFrame = frame;
+	}
+
+	/**
+	 * @return - the frame that is shown with its pixels and graph, they are only changed together
+	 */
+	protected synchronized ShownFrame shown()
+	{
+		return new ShownFrame( currentFrame, img, skeleton, nodes );
+	}
+
+	/**
+	 * Analyzes the shown frame or takes the graph from the cache if the frame was not edited since.
+	 * 
+	 * @param frame - 1-based
+	 * @param force - always re-analyze (e.g. if the user asks for it)
+	 * @return
+	 */
+	protected Graph analyzeFrame( final int frame, final boolean force )
+	{
+		// nothing may run in the background on the frame we show and edit
+		prefetcher.claim( frame );
+
+		return force ? frames.analyze( frame ) : frames.getGraph( frame );
+	}
 		
 	/**
 	 * @return - the x coordinate corrected for maginifcation
@@ -125,79 +253,95 @@ public class MouseEventHandler< T extends RealType< T > > extends AbstractTool i
 		x = e.getX();
 		y = e.getY();
 		
-		if ( holdingKeyF && !trackingMode )
+		if ( ( holdingKeyF || holdingKeyE ) && !trackingMode )
 		{
+			// a stroke stays in the frame it was started in
+			if ( painting == null || painting.frame != currentFrame )
+				return;
+
 			final int x0 = getXCoordinate();
 			final int y0 = getYCoordinate();
-			
-			final int distX = Math.abs( x0 - xd );
-			final int distY = Math.abs( y0 - yd );
-			
-			if ( distX > 1 || distY > 1 )
-			{
-				// draw a line
-				if ( distX > distY )
-				{
-					final float yInc;
-					float y1;
-					if ( x0 < xd )
-					{
-						yInc = (float)( yd-y0 ) / (float)distX;
-						y1 = y0;
-					}
-					else
-					{
-						yInc = (float)( y0-yd ) / (float)distX;
-						y1 = yd;
-					}
-										
-					for ( int x1 = Math.min( x0, xd ); x1 <= Math.max( x0, xd ); ++x1 )
-					{
-						randomAccess.setPosition( x1, 0 );
-						randomAccess.setPosition( Math.round( y1 ), 1 );
-						randomAccess.getType().setReal( 255 );
-						
-						y1 += yInc;
-					}						
-				}
-				else
-				{
-					final float xInc;
-					float x1;
-					if ( y0 < yd )
-					{
-						xInc = (float)( xd-x0 ) / (float)distY;
-						x1 = x0;
-					}
-					else
-					{
-						xInc = (float)( x0-xd ) / (float)distY;
-						x1 = xd;
-					}
-										
-					for ( int y1 = Math.min( y0, yd ); y1 <= Math.max( y0, yd ); ++y1 )
-					{
-						randomAccess.setPosition( y1, 1 );
-						randomAccess.setPosition( Math.round( x1 ), 0 );
-						randomAccess.getType().setReal( 255 );
-						
-						x1 += xInc;
-					}						
-				}
-			}
-			else	
+
+			// the first position after pressing the key has no previous one
+			final int xs = xd < 0 ? x0 : xd;
+			final int ys = yd < 0 ? y0 : yd;
+
+			brush.setErase( holdingKeyE );
+
+			// not while the frame is analyzed or edited by the worker
+			synchronized ( frames.getLock( painting.frame ) )
 			{
-				randomAccess.setPosition( getXCoordinate(), 0 );
-				randomAccess.setPosition( getYCoordinate(), 1 );
-				randomAccess.getType().setReal( 255 );
+				brush.line( painting.skeleton, xs, ys, x0, y0 );
 			}
 
+			// the tip reaches at most its width around the line
+			damageMinX = Math.min( damageMinX, Math.min( xs, x0 ) - brush.getWidth() );
+			damageMinY = Math.min( damageMinY, Math.min( ys, y0 ) - brush.getWidth() );
+			damageMaxX = Math.max( damageMaxX, Math.max( xs, x0 ) + brush.getWidth() );
+			damageMaxY = Math.max( damageMaxY, Math.max( ys, y0 ) + brush.getWidth() );
+
 			xd = x0;
 			yd = y0;
 			
-			imp.updateAndDraw();
+			scheduleRepaint();
+		}
+	}
+
+	/**
+	 * Remembers the frame a new stroke paints into, the region it painted is analyzed in this frame even if
+	 * another one is shown when the key is released.
+	 */
+	protected void startStroke()
+	{
+		// a stroke that is continued with the other key keeps its frame
+		if ( painting == null || !brush.isDirty() )
+			painting = shown();
+	}
+
+	/**
+	 * Repaints the painted pixels now or, if the last repaint was less than {@link #repaintIntervalMillis}
+	 * ago, once the interval is over. All pixels painted until then are drawn together.
+	 */
+	protected void scheduleRepaint()
+	{
+		if ( repaintTimer.isRunning() )
+			return;
+
+		final long wait = lastRepaint + repaintIntervalMillis - System.currentTimeMillis();
+
+		if ( wait <= 0 )
+		{
+			repaintDamaged();
+		}
+		else
+		{
+			repaintTimer.setInitialDelay( (int)wait );
+			repaintTimer.restart();
 		}
 	}
+
+	/**
+	 * Updates the displayed image and redraws only the part of the canvas that was painted into.
+	 */
+	protected void repaintDamaged()
+	{
+		repaintTimer.stop();
+		lastRepaint = System.currentTimeMillis();
+
+		if ( damageMinX > damageMaxX )
+			return;
+
+		final int x0 = Math.max( 0, damageMinX );
+		final int y0 = Math.max( 0, damageMinY );
+		final int x1 = Math.min( imp.getWidth() - 1, damageMaxX );
+		final int y1 = Math.min( imp.getHeight() - 1, damageMaxY );
+
+		imp.updateImage();
+		imp.draw( x0, y0, x1 - x0 + 1, y1 - y0 + 1 );
+
+		damageMinX = damageMinY = Integer.MAX_VALUE;
+		damageMaxX = damageMaxY = -1;
+	}
 	
 	@Override
 	final public void mouseClicked( final MouseEvent arg0 ) 
@@ -205,211 +349,144 @@ public class MouseEventHandler< T extends RealType< T > > extends AbstractTool i
 		final int x = getXCoordinate();
 		final int y = getYCoordinate();
 
-		new Thread( new Runnable()
+		// shift-click adds another segment to the ones that are tracked already
+		final boolean addTrack = arg0.isShiftDown() && trackingInitialized != TrackingStatus.NOT_INITIALIZED;
+
+		// the frame the user clicked on
+		final ShownFrame clicked = shown();
+
+		if ( trackingMode && junctionMode )
 		{
-			@Override
-			public void run()
+			if ( trackingJunctions )
 			{
-				if ( trackingMode )
-				{
-					final Segment refSegment;
-					
-					if ( trackingInitialized == TrackingStatus.NOT_INITIALIZED )
-					{
-						updateSource();
-						final int refFrame = imp.getFrame();
+				IJ.log( "Junction tracking is still running, please wait." );
+				return;
+			}
 
-						// find the closest point on a path
-						final int[] position = parent.findClosestPointOnPath( img, x, y, nodes );
-						
-						if ( position == null )
-							return;
+			// all junctions are tracked already, a click only selects one (and does not cancel anything)
+			worker.execute( "Selecting junction", job ->
+			{
+				selectedJunction = junctionTracker.findTrack( clicked.frame, x, y, JunctionTracker.searchRadius );
+				displayAllInformation();
+			} );
 
-						// get the two nodes that are connected by this path
-						refSegment = parent.findSegment( img, nodes, position );
+			return;
+		}
 
-						if ( refSegment == null )
-						{
-							trackingInitialized = TrackingStatus.NOT_INITIALIZED;
-							return;
-						}
+		// a new click replaces the selection or tracking that is still running
+		worker.submit( trackingMode ? "Tracking" : "Selecting", job ->
+		{
+			if ( trackingMode )
+			{
+				final Segment refSegment;
+				
+				if ( trackingInitialized == TrackingStatus.NOT_INITIALIZED || addTrack )
+				{
+					final int refFrame = clicked.frame;
 
-						segmentLocationPerFrame[ refFrame - 1 ] = refSegment;
+					// find the closest point on a path
+					final int[] position = parent.findClosestPointOnPath( clicked.img, x, y, clicked.nodes );
+					
+					if ( position == null )
+						return;
 
-						SwingUtilities.invokeLater( () -> IJ.log( "Tracking forward and backwards through time ... " ) );
+					// get the two nodes that are connected by this path
+					refSegment = parent.findSegment( clicked.img, clicked.nodes, position );
 
-						// propagate back in time
-						boolean success = trackForwardThroughTime( refFrame );
+					if ( refSegment == null )
+					{
+						if ( !addTrack )
+							trackingInitialized = TrackingStatus.NOT_INITIALIZED;
+						return;
+					}
 
-						// propagate forward in time
-						success &= trackBackwardThroughTime( refFrame );
+					synchronized ( tracker )
+					{
+						if ( !addTrack )
+							tracker.clear();
 
-						imp.setPosition( imp.getStackIndex( imp.getChannel(), imp.getSlice(), refFrame ) );
-						
-						if ( !success )
-							trackingInitialized = TrackingStatus.PARTIALLY_TRACKED;
-						else
-							trackingInitialized = TrackingStatus.FULLY_TRACKED;
+						selectedTrack = tracker.addTrack( refFrame, refSegment );
 					}
-					else
-					{
-						// find the closest point on a path
-						final int[] position = parent.findClosestPointOnPath( img, x, y, nodes );
-						
-						if ( position == null )
-							return;
 
-						// get the two nodes that are connected by this path
-						refSegment = parent.findSegment( img, nodes, position );
+					SwingUtilities.invokeLater( () -> IJ.log( "Tracking forward and backwards through time ... " ) );
 
-						if ( refSegment == null )
-							return;
+					// propagates forward and back in time at the same time
+					boolean success = tracker.track( refFrame, selectedTrack, worker, job );
 
-						segmentLocationPerFrame[ imp.getFrame() - 1 ] = refSegment;
-					}
+					if ( addTrack )
+						success &= trackingInitialized == TrackingStatus.FULLY_TRACKED;
 
-					displayAllInformation();
+					if ( !success )
+						trackingInitialized = TrackingStatus.PARTIALLY_TRACKED;
+					else
+						trackingInitialized = TrackingStatus.FULLY_TRACKED;
 				}
 				else
 				{
 					// find the closest point on a path
-					final int[] position = parent.findClosestPointOnPath( img, x, y, nodes );
+					final int[] position = parent.findClosestPointOnPath( clicked.img, x, y, clicked.nodes );
 					
 					if ( position == null )
-					{
-						imp.setOverlay( null );
-						segment = null;
 						return;
-					}
-					
-					// get the two nodes that are connected by this path
-					segment = parent.findSegment( img, nodes, position );
-					
-					if ( segment == null )
-					{
-						imp.setOverlay( null );
-						return;
-					}
-					
-					Overlay o = new Overlay();
-					OvalRoi o1 = new OvalRoi( segment.getNode1().getPosition()[ 0 ] - 1, segment.getNode1().getPosition()[ 1 ] - 1, 3, 3 );
-					OvalRoi o2 = new OvalRoi( segment.getNode2().getPosition()[ 0 ] - 1, segment.getNode2().getPosition()[ 1 ] - 1, 3, 3 );
-					o1.setStrokeColor( Color.GREEN );
-					o2.setStrokeColor( Color.GREEN );
-					o.add( o1 );
-					o.add( o2 );
-					
-					PolygonRoi roi = segment.getPolygonRoi();
-					roi.setStrokeColor( Color.RED );
-					o.add( roi );
-					imp.setOverlay( o );
-				}
-			}
-		} ).start();
-
 
-	}
-	
-	protected boolean trackForwardThroughTime( final int refFrame )
-	{
-		IJ.log( "nf= " + imp.getNFrames() );
-		IJ.log( "refFrame= " + refFrame );
-
-		// propagate forward in time
-		for ( int t = refFrame + 1; t <= imp.getNFrames(); ++t )
-		{
-			IJ.log( "t= " + t );
-			final Segment lastSegment = segmentLocationPerFrame[ t - 2 ];
-			final ArrayList< int[] > lastPoints = lastSegment.getPoints();
+					// get the two nodes that are connected by this path
+					refSegment = parent.findSegment( clicked.img, clicked.nodes, position );
 
-			if ( lastPoints == null || lastPoints.size() == 0 )
-			{
-				IJ.log( "Last segment of " + t + " is null." );
-				return false;
-			}
+					if ( refSegment == null )
+						return;
 
-			// triggers already updateSource() due to the SliceListener
-			imp.setPosition( imp.getStackIndex( imp.getChannel(), imp.getSlice(), t ) );
+					final int track = tracker.findTrack( clicked.frame, refSegment );
 
-			final Segment segment = findSegmentInFrame( lastPoints );
+					// clicking on a tracked segment selects it, otherwise it corrects the selected track
+					if ( track >= 0 )
+						selectedTrack = track;
+					else
+						tracker.setSegment( selectedTrack, clicked.frame, refSegment );
+				}
 
-			if ( segment == null )
-			{
-				IJ.log( "There was a problem finding corresponding segment in frame " + t + " (Forward tracking), node = null" );
-				return false;
+				if ( !job.isCancelled() )
+					displayAllInformation();
 			}
 			else
 			{
-				segmentLocationPerFrame[ t - 1 ] = segment;
-			}
-		}
-		return true;
-	}
-
-	protected boolean trackBackwardThroughTime( final int refFrame )
-	{
-		for ( int t = refFrame - 1; t >= 1; --t )
-		{
-			final Segment lastSegment = segmentLocationPerFrame[ t ];
-			final ArrayList< int[] > lastPoints = lastSegment.getPoints();
-
-			if ( lastPoints == null || lastPoints.size() == 0 )
-			{
-				IJ.log( "Last segment of " + t + " is null." );
-				return false;
+				// find the closest point on a path
+				final int[] position = parent.findClosestPointOnPath( clicked.img, x, y, clicked.nodes );
+				
+				if ( position == null )
+				{
+					imp.setOverlay( null );
+					select( null, null );
+					return;
+				}
+				
+				// get the two nodes that are connected by this path
+				final Segment segment = parent.findSegment( clicked.img, clicked.nodes, position );
+				select( segment, clicked );
+				
+				if ( segment == null )
+				{
+					imp.setOverlay( null );
+					return;
+				}
+				
+				Overlay o = new Overlay();
+				OvalRoi o1 = new OvalRoi( segment.getNode1().getPosition()[ 0 ] - 1, segment.getNode1().getPosition()[ 1 ] - 1, 3, 3 );
+				OvalRoi o2 = new OvalRoi( segment.getNode2().getPosition()[ 0 ] - 1, segment.getNode2().getPosition()[ 1 ] - 1, 3, 3 );
+				o1.setStrokeColor( Color.GREEN );
+				o2.setStrokeColor( Color.GREEN );
+				o.add( o1 );
+				o.add( o2 );
+				
+				PolygonRoi roi = segment.getPolygonRoi();
+				roi.setStrokeColor( Color.RED );
+				o.add( roi );
+				imp.setOverlay( o );
 			}
+		} );
 
-			// triggers already updateSource() due to the SliceListener
-			imp.setPosition( imp.getStackIndex( imp.getChannel(), imp.getSlice(), t ) );
 
-			final Segment segment = findSegmentInFrame( lastPoints );
-
-			if ( segment == null )
-			{
-				IJ.log( "There was a problem finding corresponding segment in frame " + t + " (Backward tracking), node = null" );
-				return false;
-			}
-			else
-			{
-				segmentLocationPerFrame[ t - 1 ] = segment;
-			}
-		}
-		
-		return true;
 	}
-
-	protected Segment findSegmentInFrame( final ArrayList< int[] > lastPoints )
-	{
-		int[] position = null;
-		Segment segment = null;
-
-		for ( int i = 0; i < 3; ++i )
-		{
-			final int[] lastPoint;
-
-			if ( i == 0 )
-				lastPoint = lastPoints.get( lastPoints.size() / 2 );
-			else if ( i == 1 )
-				lastPoint = lastPoints.get( lastPoints.size() / 3 );
-			else
-				lastPoint = lastPoints.get( Math.min( lastPoints.size() - 1, ( lastPoints.size() / 3 ) * 2 ) );
-
-			// find the closest segment relative to the previous time-point
-			position = parent.findClosestPointOnPath( img, lastPoint[ 0 ], lastPoint[ 1 ], nodes );
-
-			if ( position == null )
-				continue;
-
-			// get the two nodes that are connected by this path
-			segment = parent.findSegment( img, nodes, position );
-
-			if ( segment != null )
-				break;
-		}
-
-		return segment;
-	}
-
+	
 	@Override
 	public void keyPressed(KeyEvent arg0) 
 	{
@@ -418,28 +495,48 @@ public class MouseEventHandler< T extends RealType< T > > extends AbstractTool i
 			arg0.consume();
 			imp.setOverlay( null );
 			
-			if ( this.segment == null )
+			final Segment selected;
+			final ShownFrame selectedIn;
+
+			synchronized ( this )
+			{
+				selected = segment;
+				selectedIn = segmentFrame;
+
+				// it can only be deleted once
+				segment = null;
+				segmentFrame = null;
+			}
+
+			if ( selected == null )
 			{
 				IJ.log( "No segment selected for deletion (activate the tool and left click on a segment)" );
 			}
 			else
 			{
-				// set all points on the segment to 0
-				LocalizableByDimCursor< T > randomAccess = img.createLocalizableByDimCursor( new OutOfBoundsStrategyValueFactory< T >() );
-				
-				for ( final int[] location : segment.getPoints() )
+				// after the click that selected it, in the frame it was selected in
+				worker.execute( "Deleting", job ->
 				{
-					randomAccess.setPosition( location );
-					randomAccess.getType().setZero();
-				}
-				
-				// change the nodes to one connection less
-				parent.reduceNode( segment.getNode1(), randomAccess, nodes );
-				parent.reduceNode( segment.getNode2(), randomAccess, nodes );
-				
-				imp.updateAndDraw();
-				parent.printNodeStatistics( nodes );
-				//parent.drawNodes( nodes, img.getDimensions() );
+					synchronized ( frames.getLock( selectedIn.frame ) )
+					{
+						// the frame was analyzed again since the click
+						if ( !frameCache.holds( selectedIn.frame, selectedIn.nodes ) )
+						{
+							IJ.log( "The graph changed since the segment was selected, please select it again." );
+							return;
+						}
+
+						// set all points on the segment to 0, the nodes have one connection less
+						parent.deleteSegment( selected, selectedIn.skeleton, selectedIn.nodes );
+
+						// the graph was updated, it is still valid for the changed pixels
+						frameCache.put( selectedIn.frame, selectedIn.nodes, selectedIn.skeleton );
+					}
+					
+					imp.updateAndDraw();
+					parent.printNodeStatistics( selectedIn.nodes );
+					//parent.drawNodes( nodes, img.getDimensions() );
+				} );
 			}
 			
 		}
@@ -458,9 +555,14 @@ public class MouseEventHandler< T extends RealType< T > > extends AbstractTool i
 
 			if ( !trackingMode )
 			{
-				nodes = parent.analyzeNodes( img, currentFrame );
-				imp.updateAndDraw();
-				displayAllInformation();
+				final ShownFrame shown = shown();
+
+				worker.execute( "Analyzing", job ->
+				{
+					setGraph( shown.frame, analyzeFrame( shown.frame, true ) );
+					imp.updateAndDraw();
+					displayAllInformation();
+				} );
 			}
 		}
 		else if ( arg0.getKeyChar() == 'x' )
@@ -469,9 +571,21 @@ public class MouseEventHandler< T extends RealType< T > > extends AbstractTool i
 			arg0.consume();
 			if ( !trackingMode )
 			{
-				parent.removeAllDeadEnds( img, imp, nodes );
-				imp.updateAndDraw();
-				displayAllInformation();
+				final ShownFrame shown = shown();
+
+				worker.execute( "Removing dead ends", job ->
+				{
+					synchronized ( frames.getLock( shown.frame ) )
+					{
+						parent.removeAllDeadEnds( shown.img, shown.frame, shown.nodes );
+
+						// the graph was updated like for 'd'
+						frameCache.put( shown.frame, shown.nodes, shown.skeleton );
+					}
+
+					imp.updateAndDraw();
+					displayAllInformation();
+				} );
 			}
 		}
 		else if ( arg0.getKeyChar() == 'X' )
@@ -480,15 +594,15 @@ public class MouseEventHandler< T extends RealType< T > > extends AbstractTool i
 			
 			if ( !trackingMode )
 			{
-				int current = imp.getFrame();
-				for ( int t = 1; t <= imp.getNFrames(); ++t )
+				worker.execute( "Removing dead ends of all frames", job ->
 				{
-					// triggers already updateSource() due to the SliceListener
-					imp.setPosition( imp.getStackIndex( imp.getChannel(), imp.getSlice(), t ) );
-					parent.removeAllDeadEnds( img, imp, nodes );
-				}
-				imp.setPosition( imp.getStackIndex( imp.getChannel(), imp.getSlice(), current ) );
-				displayAllInformation();
+					// works directly on the pixels of each frame, the display is not changed until all are done
+					prefetcher.cancelAll();
+					parent.removeAllDeadEnds( frames, Runtime.getRuntime().availableProcessors() );
+
+					// re-wraps the current frame and takes its new graph from the cache, redraws once
+					updateSource();
+				} );
 			}
 		}
 		else if ( arg0.getKeyCode() == 37 )
@@ -519,6 +633,10 @@ public class MouseEventHandler< T extends RealType< T > > extends AbstractTool i
 			if ( sliceObserver != null )
 				sliceObserver.unregister();
 
+			worker.shutdown();
+
+			prefetcher.shutdown();
+
 			this.unregisterTool();
 			this.unregisterTool( imp );
 			this.unregisterTool( imp.getCanvas() );
@@ -532,9 +650,35 @@ public class MouseEventHandler< T extends RealType< T > > extends AbstractTool i
 		else if ( arg0.getKeyChar() == 'f' || arg0.getKeyChar() == 'F' )
 		{
 			arg0.consume();
+
+			// the first move of a stroke only stamps (the key repeats while it is held down)
+			if ( !holdingKeyF )
+			{
+				xd = yd = -1;
+				startStroke();
+			}
+
 			holdingKeyF = true;
-			xd = getXCoordinate();
-			yd = getYCoordinate();
+		}
+		else if ( arg0.getKeyChar() == 'e' || arg0.getKeyChar() == 'E' )
+		{
+			arg0.consume();
+
+			// like 'f'
+			if ( !holdingKeyE )
+			{
+				xd = yd = -1;
+				startStroke();
+			}
+
+			holdingKeyE = true;
+		}
+		else if ( arg0.getKeyChar() == ']' || arg0.getKeyChar() == '[' )
+		{
+			// not '+'/'-', ImageJ zooms with them
+			arg0.consume();
+			brush.setWidth( brush.getWidth() + ( arg0.getKeyChar() == ']' ? 1 : -1 ) );
+			IJ.log( "Brush width: " + brush.getWidth() + " px" );
 		}
 		else if ( arg0.getKeyChar() == 't' || arg0.getKeyChar() == 'T' )
 		{
@@ -543,6 +687,7 @@ public class MouseEventHandler< T extends RealType< T > > extends AbstractTool i
 			if ( trackingMode )
 			{
 				trackingMode = false;
+				junctionMode = false;
 				trackingInitialized = TrackingStatus.NOT_INITIALIZED;
 				displayAllInformation();
 			}
@@ -550,14 +695,11 @@ public class MouseEventHandler< T extends RealType< T > > extends AbstractTool i
 			{
 				trackingMode = true;
 
-				for ( int t = 1; t <= imp.getNFrames(); ++t )
-					segmentLocationPerFrame[ t - 1 ] = null;
+				tracker.clear();
+				selectedTrack = 0;
 
-				//for ( int n = 0; n < imp.getNFrames(); ++n )
-				//	nodeLocationPerFrame[ n ][ 0 ] = nodeLocationPerFrame[ n ][ 1 ] = -1;
-				this.nodes = parent.analyzeNodes( img, currentFrame );
-				//this.nodeTree = new KDTree<Node>( nodes, nodes );
-				holdingKeyF = false;
+				setGraph( currentFrame, analyzeFrame( currentFrame, false ) );
+				holdingKeyF = holdingKeyE = false;
 				trackingInitialized = TrackingStatus.NOT_INITIALIZED;
 				displayAllInformation();
 			}
@@ -568,9 +710,16 @@ public class MouseEventHandler< T extends RealType< T > > extends AbstractTool i
 			
 			if ( trackingMode && trackingInitialized != TrackingStatus.NOT_INITIALIZED )
 			{
-				int current = currentFrame;
-				trackForwardThroughTime( current );
-				imp.setPosition( imp.getStackIndex( imp.getChannel(), imp.getSlice(), current ) );
+				final int current = currentFrame;
+
+				worker.submit( "Tracking forward", job ->
+				{
+					job.setTotal( imp.getNFrames() - current );
+					tracker.trackForward( current, job );
+
+					if ( !job.isCancelled() )
+						displayAllInformation();
+				} );
 			}
 		}
 		else if ( arg0.getKeyChar() == '<' )
@@ -579,45 +728,176 @@ public class MouseEventHandler< T extends RealType< T > > extends AbstractTool i
 			
 			if ( trackingMode && trackingInitialized != TrackingStatus.NOT_INITIALIZED )
 			{
-				int current = currentFrame;
-				trackBackwardThroughTime( current );
-				imp.setPosition( imp.getStackIndex( imp.getChannel(), imp.getSlice(), current ) );
+				final int current = currentFrame;
+
+				worker.submit( "Tracking backward", job ->
+				{
+					job.setTotal( current - 1 );
+					tracker.trackBackward( current, job );
+
+					if ( !job.isCancelled() )
+						displayAllInformation();
+				} );
+			}
+		}
+		else if ( arg0.getKeyChar() == 'a' || arg0.getKeyChar() == 'A' )
+		{
+			// track all junctions inside the ROI (or the whole frame) in one pass
+			arg0.consume();
+
+			if ( trackingMode )
+			{
+				final Roi selection = imp.getRoi();
+				final ShownFrame shown = shown();
+
+				worker.submit( "Tracking all", job ->
+				{
+					final int refFrame = shown.frame;
+					final Graph nodes = shown.nodes;
+
+					// all new tracks are shown at once
+					synchronized ( tracker )
+					{
+						tracker.clear();
+						selectedTrack = 0;
+
+						for ( final Edge edge : nodes.getEdges() )
+						{
+							// junctions are the segments between two branch points
+							if ( edge.length() == 0 || edge.getNode1().numEdges < 3 || edge.getNode2().numEdges < 3 )
+								continue;
+
+							final int center = edge.getPixels()[ edge.length() / 2 ];
+
+							if ( selection == null || selection.contains( center % nodes.getWidth(), center / nodes.getWidth() ) )
+								tracker.addTrack( refFrame, nodes.toSegment( edge ) );
+						}
+					}
+
+					if ( tracker.numTracks() == 0 )
+					{
+						IJ.log( "No junctions found" + ( selection == null ? "." : " in the ROI." ) );
+						trackingInitialized = TrackingStatus.NOT_INITIALIZED;
+						displayAllInformation();
+						return;
+					}
+
+					IJ.log( "Tracking " + tracker.numTracks() + " junctions forward and backwards through time ... " );
+
+					if ( tracker.track( refFrame, worker, job ) )
+						trackingInitialized = TrackingStatus.FULLY_TRACKED;
+					else
+						trackingInitialized = TrackingStatus.PARTIALLY_TRACKED;
+
+					if ( !job.isCancelled() )
+						displayAllInformation();
+				} );
+			}
+		}
+		else if ( arg0.getKeyChar() == 'j' || arg0.getKeyChar() == 'J' )
+		{
+			// track all junctions of the movie ('J' links them globally), or go back to the tracked segments
+			arg0.consume();
+
+			if ( trackingMode && junctionMode )
+			{
+				junctionMode = false;
+				displayAllInformation();
+			}
+			else if ( trackingMode )
+			{
+				junctionMode = true;
+				selectedJunction = -1;
+				junctionTracker.setGlobalLinking( arg0.getKeyChar() == 'J' );
+
+				worker.submit( "Tracking junctions", job ->
+				{
+					trackingJunctions = true;
+
+					try
+					{
+						if ( junctionTracker.track( frames, worker, job ) )
+						{
+							IJ.log( "Tracked " + junctionTracker.numTracks() + " junctions through " + imp.getNFrames() + " frames, click on one to select it." );
+						}
+						else
+						{
+							// only some frames were tracked
+							IJ.log( "Junction tracking was stopped." );
+							junctionTracker.clear();
+							junctionMode = false;
+						}
+					}
+					finally
+					{
+						trackingJunctions = false;
+					}
+
+					displayAllInformation();
+				} );
 			}
 		}
 		else if ( arg0.getKeyChar() == 'm' || arg0.getKeyChar() == 'M' )
 		{
 			arg0.consume();
 			
-			if ( trackingMode && trackingInitialized != TrackingStatus.NOT_INITIALIZED )
+			if ( trackingMode && junctionMode )
 			{
-				final int current = currentFrame;
-
-				new Thread( new Runnable()
+				if ( trackingJunctions )
 				{
-					@Override
-					public void run()
+					IJ.log( "Junction tracking is still running, please wait." );
+				}
+				else if ( selectedJunction < 0 )
+				{
+					IJ.log( "No junction selected (click on one)" );
+				}
+				else
+				{
+					final int current = currentFrame;
+
+					worker.submit( "Measuring", job ->
 					{
-						measure();
+						measureJunction( selectedJunction, job );
 						imp.setPosition( imp.getStackIndex( imp.getChannel(), imp.getSlice(), current ) );
-					}
-				}).start();
+					} );
+				}
+			}
+			else if ( trackingMode && trackingInitialized != TrackingStatus.NOT_INITIALIZED )
+			{
+				final int current = currentFrame;
+
+				worker.submit( "Measuring", job ->
+				{
+					measure( job );
+					imp.setPosition( imp.getStackIndex( imp.getChannel(), imp.getSlice(), current ) );
+				} );
 			}
 		}
 		
 		//IJ.log( "pressed " + arg0 );
 	}
 	
-	protected Object measure()
+	protected Object measure( final Worker.Job job )
 	{
 		final RoiManager rm = RoiManagerHandling.getRoiManager();
 
 		for ( int t = 1; t <= imp.getNFrames(); ++t )
 		{
-			final Segment segment = segmentLocationPerFrame[ t -1 ];
-			if ( segment != null )
+			if ( job.isCancelled() )
+				break;
+
+			job.progress( t, imp.getNFrames() );
+
+			final Segment[] segments = tracker.getSegments( t );
+
+			for ( int i = 0; i < segments.length; ++i )
 			{
-				imp.setPosition( imp.getChannel(), imp.getSlice(), t );
-				rm.addRoi( RoiManagerHandling.createRoi( segment.getPoints(), "t=" + t ) );
+				final Segment segment = segments[ i ];
+				if ( segment != null )
+				{
+					imp.setPosition( imp.getChannel(), imp.getSlice(), t );
+					rm.addRoi( RoiManagerHandling.createRoi( segment, segments.length == 1 ? "t=" + t : "track=" + i + " t=" + t ) );
+				}
 			}
 		}
 
@@ -627,19 +907,47 @@ public class MouseEventHandler< T extends RealType< T > > extends AbstractTool i
 		return true;
 	}
 	
-	private static < T extends RealType< T > > float meanIntensity( final Image< T > img, final PartialSegment segment )
+	protected void measureJunction( final int track, final Worker.Job job )
+	{
+		final RoiManager rm = RoiManagerHandling.getRoiManager();
+
+		for ( int t = 1; t <= imp.getNFrames(); ++t )
+		{
+			if ( job.isCancelled() )
+				break;
+
+			job.progress( t, imp.getNFrames() );
+
+			final int[] location = junctionTracker.getLocation( track, t );
+
+			if ( location != null )
+			{
+				imp.setPosition( imp.getChannel(), imp.getSlice(), t );
+
+				final PointRoi roi = new PointRoi( location[ 0 ], location[ 1 ] );
+				roi.setName( "junction=" + track + " t=" + t );
+				rm.addRoi( roi );
+			}
+		}
+
+		rm.update( rm.getGraphics() );
+		rm.repaint();
+	}
+
+	private static < T extends RealType< T > > float meanIntensity( final RandomAccessibleInterval< T > img, final PartialSegment segment )
 	{
-		final LocalizableByDimCursor< T > randomAccess = img.createLocalizableByDimCursor();
+		final RandomAccess< T > randomAccess = img.randomAccess();
 		
 		double sum = 0;
 		
-		for ( final int[] location : segment.points )
+		for ( int i = 0; i < segment.size(); ++i )
 		{
-			randomAccess.setPosition( location );
-			sum += randomAccess.getType().getRealDouble();
+			randomAccess.setPosition( segment.getX( i ), 0 );
+			randomAccess.setPosition( segment.getY( i ), 1 );
+			sum += randomAccess.get().getRealDouble();
 		}
 		
-		return (float)( sum / segment.points.size() );
+		return (float)( sum / segment.size() );
 	}
 	
 	private static final float sqDistance( final float[] v1, final float[] v2 )
@@ -654,7 +962,7 @@ public class MouseEventHandler< T extends RealType< T > > extends AbstractTool i
 	
 	protected TextRoi getTrackingModeText()
 	{
-		TextRoi t = new TextRoi( 5, 5, "Tracking Mode On" );
+		TextRoi t = new TextRoi( 5, 5, junctionMode ? "Junction Tracking Mode On" : "Tracking Mode On" );
 		t.setStrokeColor( Color.green );
 		Color col = new Color( 1f, 1f, 1f, 0.5f );
 		t.setFillColor( col );
@@ -664,28 +972,35 @@ public class MouseEventHandler< T extends RealType< T > > extends AbstractTool i
 	
 	protected Overlay getTrackingOverlay()
 	{
-		final Segment segment = segmentLocationPerFrame[ currentFrame - 1 ];
-
 		Overlay o = new Overlay();
 
-		if ( segment == null )
+		final int frame = currentFrame;
+		final Segment[] segments = tracker.getSegments( frame );
+
+		if ( selectedTrack < segments.length && segments[ selectedTrack ] == null )
+			IJ.log( "There was a problem finding a segment for t=" + frame + ", please add manually." );
+
+		for ( int i = 0; i < segments.length; ++i )
 		{
-			IJ.log( "There was a problem finding a segment for t=" + currentFrame + ", please add manually." );
-			return o;
-		}
+			final Segment segment = segments[ i ];
+
+			if ( segment == null )
+				continue;
 
-		OvalRoi o1 = new OvalRoi( segment.getNode1().getPosition()[ 0 ] - 3, segment.getNode1().getPosition()[ 1 ] - 3, 7, 7 );
-		o1.setStrokeColor( Color.GREEN );
-		o.add( o1 );
+			OvalRoi o1 = new OvalRoi( segment.getNode1().getPosition()[ 0 ] - 3, segment.getNode1().getPosition()[ 1 ] - 3, 7, 7 );
+			o1.setStrokeColor( Color.GREEN );
+			o.add( o1 );
 
-		o1 = new OvalRoi( segment.getNode2().getPosition()[ 0 ] - 3, segment.getNode2().getPosition()[ 1 ] - 3, 7, 7 );
-		o1.setStrokeColor( Color.GREEN );
-		o.add( o1 );
+			o1 = new OvalRoi( segment.getNode2().getPosition()[ 0 ] - 3, segment.getNode2().getPosition()[ 1 ] - 3, 7, 7 );
+			o1.setStrokeColor( Color.GREEN );
+			o.add( o1 );
 
-		PolygonRoi roi = segment.getPolygonRoi();
-		roi.setStrokeColor( Color.RED );
-		roi.setStrokeWidth( 2 );
-		o.add( roi );
+			// the selected track is the one a click corrects
+			PolygonRoi roi = segment.getPolygonRoi();
+			roi.setStrokeColor( i == selectedTrack ? Color.RED : Color.YELLOW );
+			roi.setStrokeWidth( 2 );
+			o.add( roi );
+		}
 
 		o.add( getTrackingModeText() );
 		imp.setOverlay( o );
@@ -693,6 +1008,35 @@ public class MouseEventHandler< T extends RealType< T > > extends AbstractTool i
 		return o;
 	}
 	
+	protected Overlay getJunctionOverlay()
+	{
+		Overlay o = new Overlay();
+
+		final JunctionTracker.Junctions junctions = junctionTracker.getJunctions( currentFrame );
+
+		if ( junctions != null )
+		{
+			for ( int i = 0; i < junctions.size(); ++i )
+			{
+				// the selected junction is bigger
+				final boolean selected = junctions.getTrack( i ) == selectedJunction;
+				final int r = selected ? 4 : 2;
+
+				OvalRoi oval = new OvalRoi( junctions.getX( i ) - r, junctions.getY( i ) - r, 2 * r + 1, 2 * r + 1 );
+				oval.setStrokeColor( selected ? Color.RED : Color.YELLOW );
+
+				if ( selected )
+					oval.setStrokeWidth( 2 );
+
+				o.add( oval );
+			}
+		}
+
+		o.add( getTrackingModeText() );
+
+		return o;
+	}
+
 	protected Overlay getAllNodesOverlay()
 	{
 		Overlay o = new Overlay();
@@ -714,13 +1058,30 @@ public class MouseEventHandler< T extends RealType< T > > extends AbstractTool i
 		return o;
 	}
 	
+	/**
+	 * @param frame - 1-based
+	 * @return - if any track has a segment in this frame
+	 */
+	protected boolean isTracked( final int frame )
+	{
+		for ( final Segment segment : tracker.getSegments( frame ) )
+			if ( segment != null )
+				return true;
+
+		return false;
+	}
+
 	public void displayAllInformation()
 	{
-		if ( trackingMode )
+		if ( trackingMode && junctionMode )
+		{
+			imp.setOverlay( getJunctionOverlay() );
+		}
+		else if ( trackingMode )
 		{
 			if ( trackingInitialized == TrackingStatus.FULLY_TRACKED )
 				imp.setOverlay( getTrackingOverlay() );
-			else if ( trackingInitialized == TrackingStatus.PARTIALLY_TRACKED && segmentLocationPerFrame[ currentFrame - 1 ] != null )
+			else if ( trackingInitialized == TrackingStatus.PARTIALLY_TRACKED && isTracked( currentFrame ) )
 				imp.setOverlay( getTrackingOverlay() );
 			else
 				imp.setOverlay( new Overlay( getTrackingModeText() ) );
@@ -749,14 +1110,47 @@ public class MouseEventHandler< T extends RealType< T > > extends AbstractTool i
 	@Override
 	public void keyReleased(KeyEvent arg0) 
 	{ 
-		if ( arg0.getKeyChar() == 'f' || arg0.getKeyChar() == 'F' )
+		if ( arg0.getKeyChar() == 'f' || arg0.getKeyChar() == 'F' || arg0.getKeyChar() == 'e' || arg0.getKeyChar() == 'E' )
 		{
 			arg0.consume();
-			holdingKeyF = false;
+			holdingKeyF = holdingKeyE = false;
 			xd = yd = -1;
-			nodes = parent.analyzeNodes( img, currentFrame );
-			imp.updateAndDraw();
-			displayAllInformation();
+
+			// the whole image is drawn below
+			repaintTimer.stop();
+			damageMinX = damageMinY = Integer.MAX_VALUE;
+			damageMaxX = damageMaxY = -1;
+
+			// only the part of the image that was painted is analyzed again
+			if ( brush.isDirty() )
+			{
+				final int minX = brush.getDirtyMinX(), minY = brush.getDirtyMinY();
+				final int maxX = brush.getDirtyMaxX(), maxY = brush.getDirtyMaxY();
+
+				// the next stroke starts a new region
+				brush.resetDirty();
+
+				final ShownFrame painted = painting;
+
+				worker.execute( "Analyzing", job ->
+				{
+					synchronized ( frames.getLock( painted.frame ) )
+					{
+						parent.analyzeRegion( painted.img, painted.frame, painted.nodes, minX, minY, maxX, maxY );
+						frameCache.put( painted.frame, painted.nodes, painted.skeleton );
+					}
+
+					imp.updateAndDraw();
+					displayAllInformation();
+				} );
+			}
+			else
+			{
+				imp.updateAndDraw();
+				displayAllInformation();
+			}
+
+			painting = null;
 		}
 	}
 
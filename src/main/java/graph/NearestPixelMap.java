@@ -0,0 +1,161 @@
+package graph;
+
+import java.util.Arrays;
+
+/**
+ * For every pixel of an image the closest one of a set of pixels (Euclidean feature transform), so that
+ * finding the closest skeleton pixel to a location is a single array read, no matter how far away it is.
+ * Built in O(width * height) with one pass per column and the lower envelope of parabolas per row
+ * (Felzenszwalb &amp; Huttenlocher), it needs one int per pixel (16 MB for 2048 x 2048) and no other
+ * image-sized memory while it is built.
+ */
+public class NearestPixelMap
+{
+	final int width, height;
+
+	// the packed location (x + y * width) of the closest pixel, -1 if there is none
+	final int[] nearest;
+
+	// marks the pixels to find before the first pass
+	final static int SET = -2;
+
+	/**
+	 * @param width
+	 * @param height
+	 * @param pixels - the packed locations (x + y * width) of the pixels to find
+	 * @param numPixels - how many of them are used
+	 */
+	public NearestPixelMap( final int width, final int height, final int[] pixels, final int numPixels )
+	{
+		this.width = width;
+		this.height = height;
+		this.nearest = new int[ width * height ];
+
+		for ( int i = 0; i < numPixels; ++i )
+			nearest[ pixels[ i ] ] = SET;
+
+		// the row of the closest set pixel within each column, all columns at once (row by row)
+		final int[] last = new int[ width ];
+		Arrays.fill( last, -1 );
+
+		for ( int y = 0, i = 0; y < height; ++y )
+			for ( int x = 0; x < width; ++x, ++i )
+			{
+				if ( nearest[ i ] == SET )
+					last[ x ] = y;
+
+				nearest[ i ] = last[ x ];
+			}
+
+		final int[] next = last;
+		Arrays.fill( next, -1 );
+
+		for ( int y = height - 1, i = width * height - 1; y >= 0; --y )
+			for ( int x = width - 1; x >= 0; --x, --i )
+			{
+				// a pixel is its own closest one in its column only if it is set
+				if ( nearest[ i ] == y )
+					next[ x ] = y;
+
+				final int above = nearest[ i ];
+
+				if ( next[ x ] >= 0 && ( above < 0 || next[ x ] - y < y - above ) )
+					nearest[ i ] = next[ x ];
+			}
+
+		// for each row the lower envelope of the parabolas (x - q)^2 + dy(q)^2 of all columns q
+		final int[] v = new int[ width ];
+		final double[] z = new double[ width + 1 ];
+		final long[] f = new long[ width ];
+		final int[] row = new int[ width ];
+
+		for ( int y = 0; y < height; ++y )
+		{
+			int k = -1;
+
+			for ( int q = 0; q < width; ++q )
+			{
+				row[ q ] = nearest[ q + y * width ];
+
+				if ( row[ q ] < 0 )
+					continue;
+
+				f[ q ] = (long)( row[ q ] - y ) * ( row[ q ] - y );
+
+				if ( k < 0 )
+				{
+					k = 0;
+					v[ 0 ] = q;
+					z[ 0 ] = Double.NEGATIVE_INFINITY;
+					z[ 1 ] = Double.POSITIVE_INFINITY;
+					continue;
+				}
+
+				double s = intersection( f, q, v[ k ] );
+
+				while ( s <= z[ k ] )
+					s = intersection( f, q, v[ --k ] );
+
+				++k;
+				v[ k ] = q;
+				z[ k ] = s;
+				z[ k + 1 ] = Double.POSITIVE_INFINITY;
+			}
+
+			// no set pixel in the whole image
+			if ( k < 0 )
+			{
+				for ( int x = 0; x < width; ++x )
+					nearest[ x + y * width ] = -1;
+
+				continue;
+			}
+
+			k = 0;
+
+			for ( int x = 0; x < width; ++x )
+			{
+				while ( z[ k + 1 ] < x )
+					++k;
+
+				nearest[ x + y * width ] = v[ k ] + row[ v[ k ] ] * width;
+			}
+		}
+	}
+
+	public int getWidth() { return width; }
+	public int getHeight() { return height; }
+
+	/**
+	 * @return - the packed location (x + y * width) of the closest pixel, or -1 if there is none or (x,y) is outside
+	 */
+	public int get( final int x, final int y )
+	{
+		if ( x < 0 || y < 0 || x >= width || y >= height )
+			return -1;
+
+		return nearest[ x + y * width ];
+	}
+
+	/**
+	 * @return - the packed location (x + y * width) of the closest pixel if it is not farther away than radius, otherwise -1
+	 */
+	public int get( final int x, final int y, final double radius )
+	{
+		final int pixel = get( x, y );
+
+		if ( pixel < 0 )
+			return -1;
+
+		final int dx = pixel % width - x;
+		final int dy = pixel / width - y;
+
+		return dx * dx + dy * dy <= radius * radius ? pixel : -1;
+	}
+
+	// where the parabolas rooted at q and p intersect
+	private static double intersection( final long[] f, final int q, final int p )
+	{
+		return ( ( f[ q ] + (long)q * q ) - ( f[ p ] + (long)p * p ) ) / ( 2.0 * ( q - p ) );
+	}
+}
@@ -0,0 +1,110 @@
+package graph;
+
+/**
+ * The 8-neighborhood of a pixel encoded as 8-bit code (bit i is set if neighbor i is part of the skeleton),
+ * together with lookup tables for all decisions that only depend on this pattern. Using them makes the
+ * passes over the image allocation-free.
+ */
+public class Neighborhood
+{
+	// the 8-neighborhood in raster order, the index is the bit in the code and the direction used when following a path
+	final static int[] NEIGHBOR_X = new int[]{ -1, 0, 1, -1, 1, -1, 0, 1 };
+	final static int[] NEIGHBOR_Y = new int[]{ -1, -1, -1, 0, 0, 1, 1, 1 };
+
+	// number of neighbors that are set
+	final static byte[] NUM_NEIGHBORS = new byte[ 256 ];
+
+	// can the central pixel be removed and all neighbors are still 8-connected?
+	final static boolean[] REMOVABLE = new boolean[ 256 ];
+
+	// number of branches, neighbors that are 4-connected to each other count as one branch (only for > 2 neighbors)
+	final static byte[] NUM_EDGES = new byte[ 256 ];
+
+	static
+	{
+		for ( int code = 0; code < 256; ++code )
+		{
+			NUM_NEIGHBORS[ code ] = (byte)Integer.bitCount( code );
+			REMOVABLE[ code ] = computeRemovable( code );
+			NUM_EDGES[ code ] = (byte)computeNumEdges( code );
+		}
+	}
+
+	public static int numNeighbors( final int code ) { return NUM_NEIGHBORS[ code ]; }
+	public static boolean isRemovable( final int code ) { return REMOVABLE[ code ]; }
+	public static int numEdges( final int code ) { return NUM_EDGES[ code ]; }
+
+	/**
+	 * only if it has at least two neighboring pixels we can test if they are
+	 * still 8-connected if we remove the central one
+	 */
+	protected static boolean computeRemovable( final int code )
+	{
+		final int numNeighbors = Integer.bitCount( code );
+
+		if ( numNeighbors < 2 )
+			return false;
+
+		// the remaining pixels must still be conntected through 8-neighborhood
+		// if we can iteratively add all pixels to the connected set,
+		// they are all directly or indirectly connected once the central pixel
+		// is removed (start with the lowest neighbor)
+		int connected = Integer.lowestOneBit( code );
+
+		boolean added;
+		do
+		{
+			added = false;
+
+			for ( int i = 0; i < 8; ++i )
+			{
+				if ( ( code & ( 1 << i ) ) == 0 || ( connected & ( 1 << i ) ) != 0 )
+					continue;
+
+				for ( int j = 0; j < 8; ++j )
+				{
+					if ( ( connected & ( 1 << j ) ) != 0 && is8connected( i, j ) )
+					{
+						connected |= 1 << i;
+						added = true;
+						break;
+					}
+				}
+			}
+		}
+		while ( added );
+
+		return connected == code;
+	}
+
+	/**
+	 * it is a junction, test if the neighbors are 4-connected
+	 * if they are they count only as one as it has to be
+	 * a line that is hit.
+	 */
+	protected static int computeNumEdges( final int code )
+	{
+		int numEdges = Integer.bitCount( code );
+
+		if ( numEdges <= 2 )
+			return numEdges;
+
+		// all combinations test only p1 => p2, NOT also p2 => p1!
+		for ( int i = 0; i < 8; ++i )
+			for ( int j = i + 1; j < 8; ++j )
+				if ( ( code & ( 1 << i ) ) != 0 && ( code & ( 1 << j ) ) != 0 && is4connected( i, j ) )
+					--numEdges;
+
+		return numEdges;
+	}
+
+	protected static boolean is8connected( final int i, final int j )
+	{
+		return Math.max( Math.abs( NEIGHBOR_X[ i ] - NEIGHBOR_X[ j ] ), Math.abs( NEIGHBOR_Y[ i ] - NEIGHBOR_Y[ j ] ) ) < 2;
+	}
+
+	protected static boolean is4connected( final int i, final int j )
+	{
+		return Math.abs( NEIGHBOR_X[ i ] - NEIGHBOR_X[ j ] ) + Math.abs( NEIGHBOR_Y[ i ] - NEIGHBOR_Y[ j ] ) < 2;
+	}
+}
@@ -9,7 +9,12 @@ public class Node implements RealLocalizable
 {
 	final int[] location;
 	int numEdges;
+
+	// position in the node list of the Graph it belongs to (-1 if none)
+	int id = -1;
 	
+	// the traced edges and the node at the other end of each of them (same order)
+	final ArrayList< Edge > edges;
 	final ArrayList< Node > connections;
 	
 	public Node( final int[] location, final int numEdges )
@@ -17,10 +22,13 @@ public class Node implements RealLocalizable
 		this.location = location;
 		this.numEdges = numEdges;
 		
+		this.edges = new ArrayList< Edge >();
 		this.connections = new ArrayList< Node >();
 	}
 	
 	public int[] getPosition() { return location; }
+	public ArrayList< Edge > getEdges() { return edges; }
+	public ArrayList< Node > getConnections() { return connections; }
 
 	@Override
 	public int numDimensions() { return location.length; }
@@ -0,0 +1,131 @@
+package graph;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import net.imglib2.KDTree;
+import net.imglib2.RealLocalizable;
+import net.imglib2.neighborsearch.NearestNeighborSearchOnKDTree;
+import net.imglib2.neighborsearch.RadiusNeighborSearchOnKDTree;
+
+/**
+ * The nodes of a {@link Graph} in one KD-tree per number of edges, so that the closest node with a certain
+ * number of edges (e.g. the closest 3-way junction) is found with one nearest neighbor search per degree
+ * instead of searching through all nodes that do not qualify. The search objects are created once and
+ * reused, which is why the queries are synchronized.
+ */
+public class NodeTree
+{
+	// a skeleton pixel has at most 8 neighbors
+	public final static int MAX_EDGES = 8;
+
+	// for each number of edges the tree and its searches, null if there is no such node
+	final KDTree< Node >[] trees;
+	final NearestNeighborSearchOnKDTree< Node >[] nearestSearch;
+	final RadiusNeighborSearchOnKDTree< Node >[] radiusSearch;
+
+	@SuppressWarnings("unchecked")
+	public NodeTree( final Iterable< Node > nodes )
+	{
+		final ArrayList< ArrayList< Node > > byEdges = new ArrayList< ArrayList< Node > >();
+
+		for ( int e = 0; e <= MAX_EDGES; ++e )
+			byEdges.add( new ArrayList< Node >() );
+
+		for ( final Node node : nodes )
+			byEdges.get( degree( node.numEdges ) ).add( node );
+
+		this.trees = new KDTree[ MAX_EDGES + 1 ];
+		this.nearestSearch = new NearestNeighborSearchOnKDTree[ MAX_EDGES + 1 ];
+		this.radiusSearch = new RadiusNeighborSearchOnKDTree[ MAX_EDGES + 1 ];
+
+		for ( int e = 0; e <= MAX_EDGES; ++e )
+		{
+			final ArrayList< Node > list = byEdges.get( e );
+
+			if ( list.size() == 0 )
+				continue;
+
+			trees[ e ] = new KDTree< Node >( list, list );
+			nearestSearch[ e ] = new NearestNeighborSearchOnKDTree< Node >( trees[ e ] );
+			radiusSearch[ e ] = new RadiusNeighborSearchOnKDTree< Node >( trees[ e ] );
+		}
+	}
+
+	/**
+	 * @param numEdges
+	 * @return - how many nodes with this number of edges there are
+	 */
+	public int size( final int numEdges )
+	{
+		final KDTree< Node > tree = trees[ degree( numEdges ) ];
+
+		return tree == null ? 0 : (int)tree.size();
+	}
+
+	/**
+	 * @param location
+	 * @param minEdges - the smallest number of edges of the node
+	 * @param maxEdges - the largest number of edges of the node
+	 * @param maxDistance - the largest distance to the location
+	 * @return - the closest node with minEdges &lt;= numEdges &lt;= maxEdges, or null if there is none within maxDistance
+	 */
+	public synchronized Node findClosest( final RealLocalizable location, final int minEdges, final int maxEdges, final double maxDistance )
+	{
+		Node closest = null;
+		double minSquareDistance = maxDistance * maxDistance;
+
+		for ( int e = degree( minEdges ); e <= degree( maxEdges ); ++e )
+		{
+			if ( trees[ e ] == null )
+				continue;
+
+			nearestSearch[ e ].search( location );
+
+			final double squareDistance = nearestSearch[ e ].getSquareDistance();
+
+			if ( squareDistance <= minSquareDistance )
+			{
+				minSquareDistance = squareDistance;
+				closest = nearestSearch[ e ].getSampler().get();
+			}
+		}
+
+		return closest;
+	}
+
+	/**
+	 * Adds all nodes within a radius to a list, sorted by distance for each number of edges.
+	 *
+	 * @param location
+	 * @param minEdges - the smallest number of edges of the nodes
+	 * @param maxEdges - the largest number of edges of the nodes
+	 * @param radius
+	 * @param nodes - the list to add them to
+	 * @return - how many nodes were added
+	 */
+	public synchronized int findAll( final RealLocalizable location, final int minEdges, final int maxEdges, final double radius, final List< Node > nodes )
+	{
+		int count = 0;
+
+		for ( int e = degree( minEdges ); e <= degree( maxEdges ); ++e )
+		{
+			if ( trees[ e ] == null )
+				continue;
+
+			radiusSearch[ e ].search( location, radius, true );
+
+			for ( int i = 0; i < radiusSearch[ e ].numNeighbors(); ++i )
+				nodes.add( radiusSearch[ e ].getSampler( i ).get() );
+
+			count += radiusSearch[ e ].numNeighbors();
+		}
+
+		return count;
+	}
+
+	protected static int degree( final int numEdges )
+	{
+		return Math.max( 0, Math.min( MAX_EDGES, numEdges ) );
+	}
+}
@@ -4,50 +4,61 @@ import ij.gui.PointRoi;
 import ij.gui.PolygonRoi;
 import ij.gui.Roi;
 
-import java.util.ArrayList;
+import java.util.Arrays;
 
 public class PartialSegment 
 {
-	final ArrayList< int[] > points;
+	// the locations of all points in order, one array per dimension
+	final int[] xs, ys;
 	final Node node1;
 	
-	public PartialSegment( final ArrayList< int[] > points, final Node node )
+	public PartialSegment( final int[] xs, final int[] ys, final Node node )
 	{
 		this.node1 = node;
-		this.points = points;
+		this.xs = xs;
+		this.ys = ys;
 	}
 	
-	public ArrayList< int[] > getPoints() { return points; }
+	public int size() { return xs.length; }
+	public int getX( final int i ) { return xs[ i ]; }
+	public int getY( final int i ) { return ys[ i ]; }
+
+	/**
+	 * @return - the x coordinates of all points, not a copy (do not change it)
+	 */
+	public int[] getXs() { return xs; }
+
+	/**
+	 * @return - the y coordinates of all points, not a copy (do not change it)
+	 */
+	public int[] getYs() { return ys; }
+
 	public Node getNode1() { return node1; }
 
 	/**
 	 * @return a {@link PointRoi} covering all points on the segment (except for the nodes)
 	 */
 	public PointRoi getPointRoi() 
-	{		
-		int[] px = new int[ points.size() ];
-		int[] py = new int[ points.size() ];
-		
-		for ( int i = 0; i < points.size(); ++i )
-		{
-			px[ i ] = points.get( i )[ 0 ];
-			py[ i ] = points.get( i )[ 1 ];
-		}
-		
-		return new PointRoi( px, py, px.length );
+	{
+		// ImageJ copies the coordinates (to float)
+		return new PointRoi( xs, ys, xs.length );
 	}
 	
 	public PolygonRoi getPolygonRoi()
 	{
-		int[] px = new int[ points.size() ];
-		int[] py = new int[ points.size() ];
-		
-		for ( int i = 0; i < points.size(); ++i )
-		{
-			px[ i ] = points.get( i )[ 0 ];
-			py[ i ] = points.get( i )[ 1 ];
-		}
-
-		return new PolygonRoi( px, py, px.length, Roi.POLYLINE );
+		return getPolygonRoi( Roi.POLYLINE );
+	}
+
+	/**
+	 * @param type - e.g. {@link Roi#POLYLINE}
+	 * @return a {@link PolygonRoi} through all points on the segment (except for the nodes)
+	 */
+	public PolygonRoi getPolygonRoi( final int type )
+	{
+		// ImageJ copies the coordinates, except for a traced roi that keeps them and makes them relative in place
+		if ( type == Roi.TRACED_ROI )
+			return new PolygonRoi( Arrays.copyOf( xs, xs.length ), Arrays.copyOf( ys, ys.length ), xs.length, type );
+
+		return new PolygonRoi( xs, ys, xs.length, type );
 	}
 }
@@ -0,0 +1,198 @@
+package graph;
+
+import graph.ComputeUnconnected.PathBuffer;
+
+/**
+ * Follows a path of the skeleton pixel by pixel until it reaches a node. It does not allocate anything per
+ * step: the neighbors are read as one {@link Neighborhood} code into fixed buffers and the points go into
+ * growable int buffers that are reused by the next trace, only {@link #toPartialSegment()} copies them out.
+ * One instance can trace any number of paths, but it is not thread-safe.
+ */
+public class PathTracer
+{
+	SkeletonImage img;
+	Graph nodes;
+
+	// the neighbors of the current pixel except for the one we come from
+	final int[] nx = new int[ 8 ], ny = new int[ 8 ];
+	int numNeighbors;
+
+	// the points of the last trace (excluding the start and the node it ends at)
+	final PathBuffer xs = new PathBuffer(), ys = new PathBuffer();
+
+	// the node the last trace ended at
+	Node node;
+
+	public PathTracer() {}
+
+	public PathTracer( final SkeletonImage img, final Graph nodes )
+	{
+		set( img, nodes );
+	}
+
+	public void set( final SkeletonImage img, final Graph nodes )
+	{
+		this.img = img;
+		this.nodes = nodes;
+	}
+
+	public Node getNode() { return node; }
+	public int size() { return xs.size(); }
+	public int getX( final int i ) { return xs.get( i ); }
+	public int getY( final int i ) { return ys.get( i ); }
+
+	/**
+	 * @return - a copy of the last trace
+	 */
+	public PartialSegment toPartialSegment()
+	{
+		return new PartialSegment( xs.toArray(), ys.toArray(), node );
+	}
+
+	/**
+	 * Finds the path to the next node from a certain location on a line (excluding the current position and the
+	 * node itself). If the point itself is a node or the directly adjacent one, the path will be empty.
+	 *
+	 * @param x0
+	 * @param y0
+	 * @param startDirection - which of the set neighbors (in the order of {@link Neighborhood#NEIGHBOR_X}) to go to first
+	 * @param ignoreDeadEnds - continue if the start is a node, and at forks that are no nodes
+	 * @return - false if there is a bug in the graph (the path does not end at a node)
+	 */
+	public boolean trace( final int x0, final int y0, final int startDirection, final boolean ignoreDeadEnds )
+	{
+		xs.clear();
+		ys.clear();
+
+		node = nodes.getNode( x0, y0 );
+
+		if ( node != null && !ignoreDeadEnds )
+			return true;
+
+		int currentX = x0, currentY = y0;
+		int nextX = 0, nextY = 0;
+		boolean hasNext = false;
+
+		int count = 0;
+		final int code = img.neighborhood( x0, y0 );
+
+		for ( int i = 0; i < 8; ++i )
+		{
+			if ( ( code & ( 1 << i ) ) != 0 && startDirection == count++ )
+			{
+				nextX = x0 + Neighborhood.NEIGHBOR_X[ i ];
+				nextY = y0 + Neighborhood.NEIGHBOR_Y[ i ];
+				node = nodes.getNode( nextX, nextY );
+				hasNext = true;
+
+				break;
+			}
+		}
+
+		// startDirection does not exist
+		if ( !hasNext )
+			return true;
+
+		// follow the path until a node is reached
+		while ( node == null )
+		{
+			// did we arrive back where we started?
+			// (is it a closed loop without nodes?)
+			if ( nextX == x0 && nextY == y0 )
+			{
+				// add an artifical node at the current location
+				node = new Node( new int[]{ nextX, nextY }, 2 );
+				return true;
+			}
+
+			xs.add( nextX );
+			ys.add( nextY );
+
+			// find all possible points to continue (except for the one that we come from)
+			neighbors( nextX, nextY, currentX, currentY );
+
+			if ( numNeighbors == 0 )
+			{
+				// a bug in the graph, did not find a node at the end
+				return false;
+			}
+			if ( numNeighbors == 1 )
+			{
+				currentX = nextX;
+				currentY = nextY;
+				nextX = nx[ 0 ];
+				nextY = ny[ 0 ];
+
+				// is the next one a node?
+				node = nodes.getNode( nextX, nextY );
+			}
+			else
+			{
+				// one of them has to be a node, find the one that is
+				for ( int i = 0; i < numNeighbors; ++i )
+				{
+					node = nodes.getNode( nx[ i ], ny[ i ] );
+
+					if ( node != null )
+						break;
+				}
+
+				// there was something wrong, none of them was a node
+				if ( node == null && !ignoreDeadEnds )
+					return false;
+
+				// we have to check if the previous one was a node, if so it is ok
+				final Node n = nodes.getNode( currentX, currentY );
+				boolean moved = false;
+
+				if ( n != null && n.numEdges == 3 )
+				{
+					// choose the one that has a distance of 2 from the node
+					for ( int i = 0; i < numNeighbors; ++i )
+					{
+						if ( Math.max( Math.abs( nx[ i ] - currentX ), Math.abs( ny[ i ] - currentY ) ) >= 2 )
+						{
+							currentX = nextX;
+							currentY = nextY;
+							nextX = nx[ i ];
+							nextY = ny[ i ];
+
+							// is the next one a node?
+							node = nodes.getNode( nextX, nextY );
+							moved = true;
+							break;
+						}
+					}
+				}
+
+				// it would try the same again forever
+				if ( node == null && !moved )
+					return false;
+			}
+		}
+
+		return true;
+	}
+
+	protected void neighbors( final int x, final int y, final int excludeX, final int excludeY )
+	{
+		final int code = img.neighborhood( x, y );
+		numNeighbors = 0;
+
+		for ( int i = 0; i < 8; ++i )
+		{
+			if ( ( code & ( 1 << i ) ) == 0 )
+				continue;
+
+			final int xi = x + Neighborhood.NEIGHBOR_X[ i ];
+			final int yi = y + Neighborhood.NEIGHBOR_Y[ i ];
+
+			if ( xi != excludeX || yi != excludeY )
+			{
+				nx[ numNeighbors ] = xi;
+				ny[ numNeighbors ] = yi;
+				++numNeighbors;
+			}
+		}
+	}
+}
@@ -0,0 +1,151 @@
+package graph;
+
+import java.util.Arrays;
+
+/**
+ * Open-addressing hash map from a packed pixel location (x + y * width) to what is at this
+ * location (the {@link Node} or the {@link Edge} it belongs to). Lookups are O(1), which replaces
+ * the linear scan over all nodes that was done for every pixel while tracing a path.
+ */
+public class PixelIndex< V >
+{
+	final static int EMPTY = -1;
+
+	int[] keys;
+	Object[] values;
+	int mask, size;
+
+	public PixelIndex()
+	{
+		this( 16 );
+	}
+
+	public PixelIndex( final int expectedSize )
+	{
+		allocate( capacityFor( expectedSize ) );
+	}
+
+	public int size() { return size; }
+
+	@SuppressWarnings( "unchecked" )
+	public V get( final int key )
+	{
+		for ( int i = slot( key ); ; i = ( i + 1 ) & mask )
+		{
+			final int k = keys[ i ];
+
+			if ( k == key )
+				return (V)values[ i ];
+			else if ( k == EMPTY )
+				return null;
+		}
+	}
+
+	public void put( final int key, final V value )
+	{
+		int i = slot( key );
+
+		while ( keys[ i ] != EMPTY )
+		{
+			if ( keys[ i ] == key )
+			{
+				values[ i ] = value;
+				return;
+			}
+
+			i = ( i + 1 ) & mask;
+		}
+
+		keys[ i ] = key;
+		values[ i ] = value;
+
+		// keep the load factor below 0.5
+		if ( ++size * 2 > keys.length )
+			rehash( keys.length * 2 );
+	}
+
+	@SuppressWarnings( "unchecked" )
+	public V remove( final int key )
+	{
+		int i = slot( key );
+
+		while ( keys[ i ] != key )
+		{
+			if ( keys[ i ] == EMPTY )
+				return null;
+
+			i = ( i + 1 ) & mask;
+		}
+
+		final V removed = (V)values[ i ];
+
+		// backward-shift deletion, so no tombstones are necessary
+		int gap = i;
+
+		for ( int j = ( i + 1 ) & mask; keys[ j ] != EMPTY; j = ( j + 1 ) & mask )
+		{
+			final int home = slot( keys[ j ] );
+
+			// can the entry at j be moved into the gap without breaking its probe sequence?
+			if ( ( ( j - home ) & mask ) >= ( ( j - gap ) & mask ) )
+			{
+				keys[ gap ] = keys[ j ];
+				values[ gap ] = values[ j ];
+				gap = j;
+			}
+		}
+
+		keys[ gap ] = EMPTY;
+		values[ gap ] = null;
+		--size;
+
+		return removed;
+	}
+
+	public void clear()
+	{
+		Arrays.fill( keys, EMPTY );
+		Arrays.fill( values, null );
+		size = 0;
+	}
+
+	protected int slot( final int key )
+	{
+		// Fibonacci hashing, neighboring pixels end up in different slots
+		final int h = key * 0x9E3779B9;
+		return ( h ^ ( h >>> 16 ) ) & mask;
+	}
+
+	@SuppressWarnings( "unchecked" )
+	protected void rehash( final int capacity )
+	{
+		final int[] oldKeys = keys;
+		final Object[] oldValues = values;
+
+		allocate( capacity );
+
+		for ( int i = 0; i < oldKeys.length; ++i )
+			if ( oldKeys[ i ] != EMPTY )
+				put( oldKeys[ i ], (V)oldValues[ i ] );
+	}
+
+	protected void allocate( final int capacity )
+	{
+		this.keys = new int[ capacity ];
+		this.values = new Object[ capacity ];
+		this.mask = capacity - 1;
+		this.size = 0;
+
+		Arrays.fill( keys, EMPTY );
+	}
+
+	protected static int capacityFor( final int expectedSize )
+	{
+		int capacity = 16;
+
+		while ( capacity < expectedSize * 2 )
+			capacity *= 2;
+
+		return capacity;
+	}
+}
@@ -1,14 +1,12 @@
 package graph;
 
-import java.util.ArrayList;
-
 public class Segment extends PartialSegment
 {
 	final Node node2;
 	
-	public Segment( final ArrayList< int[] > points, final Node node1, final Node node2 )
+	public Segment( final int[] xs, final int[] ys, final Node node1, final Node node2 )
 	{
-		super( points, node1 );
+		super( xs, ys, node1 );
 		this.node2 = node2;
 	}
 	
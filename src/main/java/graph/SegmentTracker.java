@@ -0,0 +1,485 @@
+package graph;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import ij.IJ;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * Follows a set of segments (e.g. cell-cell junctions) through time. The frames are visited once per direction
+ * and all tracks look up their segment in the same graph from the {@link FrameGraphProvider}, so each frame is
+ * analyzed only once no matter how many segments are tracked.
+ *
+ * The segment of the next frame is the edge that is most similar to the one of the last frame: the edges closest
+ * to the points of the last segment are candidates (looked up in the pixel index of the {@link Graph}), they are
+ * scored by the modified Hausdorff distance (nodes included).
+ *
+ * The tracks are found on the worker and shown on the event dispatch thread, so all access to them is
+ * synchronized; {@link #getSegments(int)} gives the display a copy. Changes that belong together (e.g. clear
+ * and add new tracks) are made while holding the lock of the tracker, so they are never shown half done.
+ */
+public class SegmentTracker< T extends RealType< T > >
+{
+	// how far (in pixels) from the last segment candidate edges are searched
+	public static int searchRadius = 5;
+
+	// the largest modified Hausdorff distance (in pixels) that is still the same segment
+	public static double maxDistance = 10;
+
+	final ComputeUnconnected parent;
+	final FrameGraphProvider< T > frames;
+
+	// for each track the location of its segment in each frame (null if unknown), guarded by this
+	final ArrayList< Segment[] > tracks = new ArrayList< Segment[] >();
+
+	public SegmentTracker( final ComputeUnconnected parent, final FrameGraphProvider< T > frames )
+	{
+		this.parent = parent;
+		this.frames = frames;
+	}
+
+	public synchronized int numTracks() { return tracks.size(); }
+
+	/**
+	 * @param track
+	 * @param frame - 1-based
+	 * @return - the segment of this track in this frame or null
+	 */
+	public synchronized Segment getSegment( final int track, final int frame ) { return tracks.get( track )[ frame - 1 ]; }
+
+	public synchronized void setSegment( final int track, final int frame, final Segment segment ) { tracks.get( track )[ frame - 1 ] = segment; }
+
+	/**
+	 * @param frame - 1-based
+	 * @return - the segment of each track in this frame (null if unknown)
+	 */
+	public synchronized Segment[] getSegments( final int frame )
+	{
+		final Segment[] segments = new Segment[ tracks.size() ];
+
+		for ( int i = 0; i < segments.length; ++i )
+			segments[ i ] = tracks.get( i )[ frame - 1 ];
+
+		return segments;
+	}
+
+	/**
+	 * Starts a new track.
+	 *
+	 * @param frame - 1-based
+	 * @param segment - its location in this frame
+	 * @return - the index of the track
+	 */
+	public synchronized int addTrack( final int frame, final Segment segment )
+	{
+		final Segment[] track = new Segment[ frames.numFrames() ];
+		track[ frame - 1 ] = segment;
+		tracks.add( track );
+
+		return tracks.size() - 1;
+	}
+
+	public synchronized void clear() { tracks.clear(); }
+
+	/**
+	 * @param frame - 1-based
+	 * @param segment
+	 * @return - the track that has a segment between nodes at the same locations in this frame, or -1 (the
+	 * segments of a track may come from a graph that was not cached)
+	 */
+	public synchronized int findTrack( final int frame, final Segment segment )
+	{
+		for ( int i = 0; i < tracks.size(); ++i )
+		{
+			final Segment other = tracks.get( i )[ frame - 1 ];
+
+			if ( other != null &&
+				( ( isSameNode( other.getNode1(), segment.getNode1() ) && isSameNode( other.getNode2(), segment.getNode2() ) ) ||
+				  ( isSameNode( other.getNode1(), segment.getNode2() ) && isSameNode( other.getNode2(), segment.getNode1() ) ) ) )
+				return i;
+		}
+
+		return -1;
+	}
+
+	protected static boolean isSameNode( final Node node1, final Node node2 )
+	{
+		return ComputeUnconnected.isIdentical( node1.getPosition(), node2.getPosition() );
+	}
+
+	/**
+	 * Tracks all segments of refFrame forward and backward through time, both directions at the same time
+	 * (backward on a helper thread of the worker).
+	 *
+	 * @param refFrame - 1-based
+	 * @param worker
+	 * @param job - to report the progress and to stop if it was cancelled
+	 * @return - true if all segments were found in all frames
+	 */
+	public boolean track( final int refFrame, final Worker worker, final Worker.Job job )
+	{
+		return track( refFrame, -1, worker, job );
+	}
+
+	/**
+	 * Like {@link #track(int, Worker, Worker.Job)}, but only for one track (e.g. one that was just added).
+	 *
+	 * @param refFrame - 1-based
+	 * @param track - the track to follow, or -1 for all
+	 * @param worker
+	 * @param job - to report the progress and to stop if it was cancelled
+	 * @return - true if the segment(s) were found in all frames
+	 */
+	public boolean track( final int refFrame, final int track, final Worker worker, final Worker.Job job )
+	{
+		job.setTotal( frames.numFrames() - 1 );
+
+		// both directions are independent (they write different frames)
+		final Future< Boolean > backward = worker.fork( () -> track( refFrame, -1, track, job ) );
+
+		boolean success = track( refFrame, 1, track, job );
+
+		try
+		{
+			success &= backward.get();
+		}
+		catch ( InterruptedException | ExecutionException e )
+		{
+			IJ.log( "Backward tracking failed: " + e );
+			success = false;
+		}
+
+		return success;
+	}
+
+	/**
+	 * @param refFrame - 1-based
+	 * @param job - to report the progress and to stop if it was cancelled
+	 * @return - true if all segments of refFrame were found in all frames after refFrame
+	 */
+	public boolean trackForward( final int refFrame, final Worker.Job job )
+	{
+		return track( refFrame, 1, -1, job );
+	}
+
+	/**
+	 * @param refFrame - 1-based
+	 * @param job - to report the progress and to stop if it was cancelled
+	 * @return - true if all segments of refFrame were found in all frames before refFrame
+	 */
+	public boolean trackBackward( final int refFrame, final Worker.Job job )
+	{
+		return track( refFrame, -1, -1, job );
+	}
+
+	protected boolean track( final int refFrame, final int step, final int only, final Worker.Job job )
+	{
+		final int numFrames = frames.numFrames();
+
+		// the tracks as they are now, tracks added later are not followed
+		final Segment[][] tracks;
+
+		synchronized ( this )
+		{
+			tracks = this.tracks.toArray( new Segment[ this.tracks.size() ][] );
+		}
+
+		// the tracks that have a segment in the last frame, the others are not followed (anymore)
+		final boolean[] active = new boolean[ tracks.length ];
+		int numActive = 0;
+
+		for ( int i = 0; i < tracks.length; ++i )
+			if ( active[ i ] = ( only < 0 || only == i ) && tracks[ i ][ refFrame - 1 ] != null )
+				++numActive;
+
+		boolean success = true;
+
+		for ( int t = refFrame + step; t >= 1 && t <= numFrames && numActive > 0; t += step )
+		{
+			if ( job.isCancelled() )
+				return false;
+
+			job.step();
+
+			// one graph for all tracks, it does not replace the cached frames around the shown one
+			final RandomAccessibleInterval< T > img = frames.getImage( t );
+			final Graph nodes = frames.getGraph( t, false );
+
+			for ( int i = 0; i < tracks.length; ++i )
+			{
+				if ( !active[ i ] )
+					continue;
+
+				final Segment[] track = tracks[ i ];
+				final Segment segment = findSegmentInFrame( track[ t - step - 1 ], img, nodes );
+
+				if ( segment == null )
+				{
+					IJ.log( "There was a problem finding the corresponding segment of track " + i + " in frame " + t + " (" + ( step > 0 ? "Forward" : "Backward" ) + " tracking)" );
+
+					active[ i ] = false;
+					--numActive;
+					success = false;
+				}
+				else
+				{
+					synchronized ( this )
+					{
+						track[ t - 1 ] = segment;
+					}
+				}
+			}
+		}
+
+		return success;
+	}
+
+	/**
+	 * @param last - the segment in the previous frame
+	 * @param img - the pixels of the frame to search in
+	 * @param nodes - the graph of the frame to search in
+	 * @return - the corresponding segment or null
+	 */
+	public Segment findSegmentInFrame( final Segment last, final RandomAccessibleInterval< T > img, final Graph nodes )
+	{
+		final int size = last.size();
+
+		if ( size == 0 )
+			return null;
+
+		// the closest edges to a sample of the points of the last segment (without the nodes)
+		final LinkedHashSet< Edge > candidates = new LinkedHashSet< Edge >();
+		final SkeletonImage skeleton = SkeletonImage.wrap( img );
+		final int sampling = ComputeUnconnected.useNearestPixelMap ? 1 : Math.max( 1, searchRadius / 2 );
+
+		boolean untraced = false;
+
+		for ( int i = 0; i < size; i += sampling )
+			untraced |= addCandidates( nodes, skeleton, last.getX( i ), last.getY( i ), candidates );
+
+		untraced |= addCandidates( nodes, skeleton, last.getX( size - 1 ), last.getY( size - 1 ), candidates );
+
+		// the skeleton around it was not traced, search the old way (following the pixels)
+		if ( untraced || candidates.isEmpty() )
+			return findSegmentAtSamplePoints( last, img, nodes );
+
+		// and their neighbors, a short segment is often closer to the long one next to it than to itself
+		for ( final Edge edge : candidates.toArray( new Edge[ candidates.size() ] ) )
+		{
+			addEdges( edge.getNode1(), candidates );
+			addEdges( edge.getNode2(), candidates );
+		}
+
+		final int[][] lastPoints = withNodes( last );
+
+		Edge best = null;
+		double bestDistance = maxDistance;
+
+		for ( final Edge edge : candidates )
+		{
+			final double distance = modifiedHausdorffDistance( lastPoints[ 0 ], lastPoints[ 1 ], edge, nodes.getWidth(), bestDistance );
+
+			if ( distance <= bestDistance )
+			{
+				bestDistance = distance;
+				best = edge;
+			}
+		}
+
+		return best == null ? null : nodes.toSegment( best );
+	}
+
+	protected static void addEdges( final Node node, final LinkedHashSet< Edge > candidates )
+	{
+		for ( final Edge edge : node.getEdges() )
+			if ( edge.length() > 0 )
+				candidates.add( edge );
+	}
+
+	/**
+	 * Adds the closest edges to a point within the search radius.
+	 *
+	 * @return - true if the closest path pixel does not belong to a traced edge
+	 */
+	protected static boolean addCandidates( final Graph nodes, final SkeletonImage skeleton, final int px, final int py, final LinkedHashSet< Edge > candidates )
+	{
+		if ( ComputeUnconnected.useNearestPixelMap )
+		{
+			final int pixel = nodes.getClosestPathPixel( skeleton, px, py, searchRadius );
+
+			if ( pixel < 0 )
+				return false;
+
+			final Edge edge = nodes.getEdge( pixel % nodes.getWidth(), pixel / nodes.getWidth() );
+
+			if ( edge == null )
+				return true;
+
+			candidates.add( edge );
+
+			return false;
+		}
+
+		// search in growing squares
+		for ( int r = 0; r <= searchRadius; ++r )
+		{
+			boolean found = false;
+
+			// only the border of the square, the inside was searched already
+			for ( int y = py - r; y <= py + r; ++y )
+				for ( int x = px - r; x <= px + r; x += ( y == py - r || y == py + r || r == 0 ) ? 1 : 2 * r )
+				{
+					final Edge edge = nodes.getEdge( x, y );
+
+					if ( edge != null && edge.length() > 0 )
+					{
+						candidates.add( edge );
+						found = true;
+					}
+					else if ( edge == null && skeleton.isSet( x, y ) && nodes.getNode( x, y ) == null && ComputeUnconnected.numNeighbors( skeleton, x, y ) == 2 )
+					{
+						return true;
+					}
+				}
+
+			if ( found )
+				return false;
+		}
+
+		return false;
+	}
+
+	/**
+	 * The larger of the two mean distances of every point of one segment to the closest point of the other one
+	 * (Dubuisson &amp; Jain), less sensitive to a few outliers than the Hausdorff distance.
+	 *
+	 * @param px - x of a segment including its nodes
+	 * @param py - y of a segment including its nodes
+	 * @param edge
+	 * @param width - of the {@link Graph} the edge belongs to
+	 * @param bound - stops early and returns infinity once the distance is known to be larger
+	 * @return - the distance in pixels
+	 */
+	public static double modifiedHausdorffDistance( final int[] px, final int[] py, final Edge edge, final int width, final double bound )
+	{
+		final double maxSum = bound * px.length;
+
+		final int n = edge.length() + 2;
+		final int[] ex = new int[ n ];
+		final int[] ey = new int[ n ];
+
+		ex[ 0 ] = edge.getNode1().getPosition()[ 0 ];
+		ey[ 0 ] = edge.getNode1().getPosition()[ 1 ];
+
+		for ( int i = 0; i < edge.length(); ++i )
+		{
+			ex[ i + 1 ] = edge.getPixels()[ i ] % width;
+			ey[ i + 1 ] = edge.getPixels()[ i ] / width;
+		}
+
+		ex[ n - 1 ] = edge.getNode2().getPosition()[ 0 ];
+		ey[ n - 1 ] = edge.getNode2().getPosition()[ 1 ];
+
+		// min distance of each edge pixel to the points
+		final int[] minEdge = new int[ n ];
+		Arrays.fill( minEdge, Integer.MAX_VALUE );
+
+		double sumPoints = 0;
+
+		for ( int i = 0; i < px.length; ++i )
+		{
+			int min = Integer.MAX_VALUE;
+
+			for ( int j = 0; j < n; ++j )
+			{
+				final int dx = px[ i ] - ex[ j ];
+				final int dy = py[ i ] - ey[ j ];
+				final int d = dx * dx + dy * dy;
+
+				if ( d < min )
+					min = d;
+
+				if ( d < minEdge[ j ] )
+					minEdge[ j ] = d;
+			}
+
+			sumPoints += Math.sqrt( min );
+
+			if ( sumPoints > maxSum )
+				return Double.POSITIVE_INFINITY;
+		}
+
+		double sumEdge = 0;
+
+		for ( int j = 0; j < n; ++j )
+			sumEdge += Math.sqrt( minEdge[ j ] );
+
+		return Math.max( sumPoints / px.length, sumEdge / n );
+	}
+
+	/**
+	 * @return - x and y of node1, all points and node2
+	 */
+	protected static int[][] withNodes( final Segment segment )
+	{
+		final int n = segment.size();
+		final int[] xs = new int[ n + 2 ];
+		final int[] ys = new int[ n + 2 ];
+
+		xs[ 0 ] = segment.getNode1().getPosition()[ 0 ];
+		ys[ 0 ] = segment.getNode1().getPosition()[ 1 ];
+
+		System.arraycopy( segment.getXs(), 0, xs, 1, n );
+		System.arraycopy( segment.getYs(), 0, ys, 1, n );
+
+		xs[ n + 1 ] = segment.getNode2().getPosition()[ 0 ];
+		ys[ n + 1 ] = segment.getNode2().getPosition()[ 1 ];
+
+		return new int[][]{ xs, ys };
+	}
+
+	/**
+	 * Looks for a segment at 1/2, 1/3 and 2/3 of the last one, if the pixels there were not traced.
+	 *
+	 * @param last - the segment in the previous frame
+	 * @param img - the pixels of the frame to search in
+	 * @param nodes - the graph of the frame to search in
+	 * @return - the corresponding segment or null
+	 */
+	protected Segment findSegmentAtSamplePoints( final PartialSegment last, final RandomAccessibleInterval< T > img, final Graph nodes )
+	{
+		int[] position = null;
+		Segment segment = null;
+
+		for ( int i = 0; i < 3; ++i )
+		{
+			final int j;
+
+			if ( i == 0 )
+				j = last.size() / 2;
+			else if ( i == 1 )
+				j = last.size() / 3;
+			else
+				j = Math.min( last.size() - 1, ( last.size() / 3 ) * 2 );
+
+			// find the closest segment relative to the previous time-point
+			position = parent.findClosestPointOnPath( img, last.getX( j ), last.getY( j ), nodes );
+
+			if ( position == null )
+				continue;
+
+			// get the two nodes that are connected by this path
+			segment = parent.findSegment( img, nodes, position );
+
+			if ( segment != null )
+				break;
+		}
+
+		return segment;
+	}
+}
@@ -0,0 +1,105 @@
+package graph;
+
+import java.util.Random;
+
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * Times {@link ComputeUnconnected#removeRedundantPixels} and {@link ComputeUnconnected#findAllNodes} on a
+ * synthetic skeleton, once through the direct byte array access (8-bit images) and once through the
+ * generic RandomAccess path (32-bit images).
+ *
+ * Usage: java -cp ... graph.SkeletonBenchmark [size] [repetitions]
+ */
+public class SkeletonBenchmark
+{
+	/**
+	 * A brick wall of 1-pixel lines (all junctions are 3-way) with random dead-end spurs.
+	 *
+	 * @param size
+	 * @param seed
+	 * @return
+	 */
+	public static byte[] createSkeleton( final int size, final long seed )
+	{
+		final byte[] pixels = new byte[ size * size ];
+		final Random rnd = new Random( seed );
+		final int spacing = 32;
+
+		for ( int y = 0; y < size; y += spacing )
+		{
+			for ( int x = 0; x < size; ++x )
+				pixels[ x + y * size ] = (byte)255;
+
+			// vertical lines down to the next row, shifted by half a brick every other row
+			final int offset = ( y / spacing ) % 2 == 0 ? 0 : spacing / 2;
+
+			for ( int x = offset; x < size; x += spacing )
+				for ( int yl = y + 1; yl < Math.min( size, y + spacing ); ++yl )
+					pixels[ x + yl * size ] = (byte)255;
+		}
+
+		// diagonal spurs that end somewhere inside a brick
+		for ( int i = 0; i < size; ++i )
+		{
+			final int y = ( rnd.nextInt( size / spacing ) ) * spacing;
+			final int x = rnd.nextInt( size );
+			final int length = 2 + rnd.nextInt( spacing / 2 - 4 );
+
+			for ( int l = 1; l <= length && y + l < size && x + l < size; ++l )
+				pixels[ ( x + l ) + ( y + l ) * size ] = (byte)255;
+		}
+
+		return pixels;
+	}
+
+	protected static < T extends RealType< T > > long time( final ComputeUnconnected cu, final ImageProcessor ip )
+	{
+		final RandomAccessibleInterval< T > img = ComputeUnconnected.wrap( ip );
+		final long start = System.nanoTime();
+
+		cu.analyzeNodes( img, 1 );
+
+		return System.nanoTime() - start;
+	}
+
+	public static void main( final String[] args )
+	{
+		final int size = args.length > 0 ? Integer.parseInt( args[ 0 ] ) : 2048;
+		final int repetitions = args.length > 1 ? Integer.parseInt( args[ 1 ] ) : 10;
+
+		final ComputeUnconnected cu = new ComputeUnconnected();
+		final byte[] skeleton = createSkeleton( size, 42 );
+
+		long timeByte = 0, timeFloat = 0;
+
+		for ( int r = 0; r < repetitions; ++r )
+		{
+			final ByteProcessor bp = new ByteProcessor( size, size, skeleton.clone() );
+			final FloatProcessor fp = new FloatProcessor( size, size );
+
+			for ( int i = 0; i < skeleton.length; ++i )
+				fp.setf( i % size, i / size, skeleton[ i ] & 0xff );
+
+			// the first repetition is warm-up for the JIT
+			final long tb = time( cu, bp );
+			final long tf = time( cu, fp );
+
+			if ( r > 0 )
+			{
+				timeByte += tb;
+				timeFloat += tf;
+			}
+		}
+
+		final int n = Math.max( 1, repetitions - 1 );
+
+		System.out.println( "analyzeNodes on " + size + "x" + size + ", mean of " + n + " runs:" );
+		System.out.println( "byte[] (direct access): " + ( timeByte / n / 1000000.0 ) + " ms" );
+		System.out.println( "float (RandomAccess): " + ( timeFloat / n / 1000000.0 ) + " ms" );
+	}
+}
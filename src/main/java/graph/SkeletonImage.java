@@ -0,0 +1,221 @@
+package graph;
+
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.array.ByteArray;
+import net.imglib2.img.planar.PlanarImg;
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * A 2-d view on the segmentation that the skeleton analysis works on. Everything outside of the image is 0
+ * (like an out of bounds value strategy), setting pixels outside of the image is ignored.
+ *
+ * Byte-backed images ({@link ArrayImg}, single-plane {@link PlanarImg}) are accessed directly through their
+ * array, everything else through a {@link RandomAccess}. Instances are not thread-safe, every thread should
+ * wrap the image itself.
+ */
+public abstract class SkeletonImage
+{
+	final int width, height;
+
+	public SkeletonImage( final int width, final int height )
+	{
+		this.width = width;
+		this.height = height;
+	}
+
+	public int getWidth() { return width; }
+	public int getHeight() { return height; }
+
+	public final boolean isInside( final int x, final int y )
+	{
+		return x >= 0 && y >= 0 && x < width && y < height;
+	}
+
+	/**
+	 * @return - true if the pixel is part of the skeleton (intensity > 0), false outside of the image
+	 */
+	public abstract boolean isSet( final int x, final int y );
+
+	/**
+	 * @return - the intensity of the pixel, 0 outside of the image
+	 */
+	public abstract float get( final int x, final int y );
+
+	public abstract void set( final int x, final int y, final float value );
+
+	/**
+	 * @return - a hash of all pixels that are part of the skeleton, to detect changes
+	 */
+	public long checksum()
+	{
+		long checksum = 17;
+
+		for ( int y = 0; y < height; ++y )
+			for ( int x = 0; x < width; ++x )
+				checksum = checksum * 31 + ( isSet( x, y ) ? 1 : 0 );
+
+		return checksum;
+	}
+
+	/**
+	 * @return - a new view on the same pixels that can be used by another thread
+	 */
+	public abstract SkeletonImage newView();
+
+	public void clear( final int x, final int y ) { set( x, y, 0 ); }
+
+	/**
+	 * @return - the 8-bit code of the 8-neighborhood, bit i is set if the neighbor i (see {@link Neighborhood}) is set
+	 */
+	public int neighborhood( final int x, final int y )
+	{
+		int code = 0;
+
+		for ( int i = 0; i < 8; ++i )
+			if ( isSet( x + Neighborhood.NEIGHBOR_X[ i ], y + Neighborhood.NEIGHBOR_Y[ i ] ) )
+				code |= 1 << i;
+
+		return code;
+	}
+
+	/**
+	 * @param img - a 2-d image
+	 * @return - a direct view on the array for byte-backed images, otherwise a {@link RandomAccess}-based view
+	 */
+	public static < T extends RealType< T > > SkeletonImage wrap( final RandomAccessibleInterval< T > img )
+	{
+		if ( img.numDimensions() != 2 )
+			throw new IllegalArgumentException( "Only 2-d images are supported, this one has " + img.numDimensions() + " dimensions." );
+
+		final int width = (int)img.dimension( 0 );
+		final int height = (int)img.dimension( 1 );
+
+		Object access = null;
+
+		if ( img instanceof ArrayImg )
+			access = ( (ArrayImg< ?, ? >)img ).update( null );
+		else if ( img instanceof PlanarImg && ( (PlanarImg< ?, ? >)img ).numSlices() == 1 )
+			access = ( (PlanarImg< ?, ? >)img ).getPlane( 0 );
+
+		if ( access instanceof ByteArray )
+			return new ByteSkeletonImage( ( (ByteArray)access ).getCurrentStorageArray(), width, height );
+		else
+			return new RealSkeletonImage< T >( img );
+	}
+
+	public static class ByteSkeletonImage extends SkeletonImage
+	{
+		final byte[] pixels;
+
+		public ByteSkeletonImage( final byte[] pixels, final int width, final int height )
+		{
+			super( width, height );
+			this.pixels = pixels;
+		}
+
+		public byte[] getPixels() { return pixels; }
+
+		@Override
+		public ByteSkeletonImage newView() { return new ByteSkeletonImage( pixels, width, height ); }
+
+		@Override
+		public long checksum()
+		{
+			long checksum = 17;
+
+			for ( int i = 0; i < pixels.length; ++i )
+				checksum = checksum * 31 + ( pixels[ i ] != 0 ? 1 : 0 );
+
+			return checksum;
+		}
+
+		@Override
+		public final boolean isSet( final int x, final int y )
+		{
+			return isInside( x, y ) && pixels[ x + y * width ] != 0;
+		}
+
+		@Override
+		public final float get( final int x, final int y )
+		{
+			return isInside( x, y ) ? pixels[ x + y * width ] & 0xff : 0;
+		}
+
+		@Override
+		public final void set( final int x, final int y, final float value )
+		{
+			if ( isInside( x, y ) )
+				pixels[ x + y * width ] = (byte)Math.round( value );
+		}
+
+		@Override
+		public final int neighborhood( final int x, final int y )
+		{
+			// the border needs bounds checks
+			if ( x < 1 || y < 1 || x >= width - 1 || y >= height - 1 )
+				return super.neighborhood( x, y );
+
+			final int i = x + y * width;
+			final int above = i - width;
+			final int below = i + width;
+
+			return
+				( pixels[ above - 1 ] != 0 ? 1 : 0 ) |
+				( pixels[ above ] != 0 ? 2 : 0 ) |
+				( pixels[ above + 1 ] != 0 ? 4 : 0 ) |
+				( pixels[ i - 1 ] != 0 ? 8 : 0 ) |
+				( pixels[ i + 1 ] != 0 ? 16 : 0 ) |
+				( pixels[ below - 1 ] != 0 ? 32 : 0 ) |
+				( pixels[ below ] != 0 ? 64 : 0 ) |
+				( pixels[ below + 1 ] != 0 ? 128 : 0 );
+		}
+	}
+
+	public static class RealSkeletonImage< T extends RealType< T > > extends SkeletonImage
+	{
+		final RandomAccessibleInterval< T > img;
+		final RandomAccess< T > randomAccess;
+		final long minX, minY;
+
+		public RealSkeletonImage( final RandomAccessibleInterval< T > img )
+		{
+			super( (int)img.dimension( 0 ), (int)img.dimension( 1 ) );
+
+			this.img = img;
+			this.randomAccess = img.randomAccess();
+			this.minX = img.min( 0 );
+			this.minY = img.min( 1 );
+		}
+
+		@Override
+		public RealSkeletonImage< T > newView() { return new RealSkeletonImage< T >( img ); }
+
+		protected T moveTo( final int x, final int y )
+		{
+			randomAccess.setPosition( minX + x, 0 );
+			randomAccess.setPosition( minY + y, 1 );
+			return randomAccess.get();
+		}
+
+		@Override
+		public final boolean isSet( final int x, final int y )
+		{
+			return isInside( x, y ) && moveTo( x, y ).getRealFloat() > 0;
+		}
+
+		@Override
+		public final float get( final int x, final int y )
+		{
+			return isInside( x, y ) ? moveTo( x, y ).getRealFloat() : 0;
+		}
+
+		@Override
+		public final void set( final int x, final int y, final float value )
+		{
+			if ( isInside( x, y ) )
+				moveTo( x, y ).setReal( value );
+		}
+	}
+}
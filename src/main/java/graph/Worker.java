@@ -0,0 +1,189 @@
+package graph;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ij.IJ;
+
+/**
+ * Runs everything that changes the state of the interactive session (selection, tracking, deletion, ...) one
+ * after the other on a single thread, so no two of them race on the same image or graph.
+ *
+ * Jobs started with {@link #submit(String, Task)} replace each other: a new one cancels the previous one,
+ * whether it is still waiting or already running (the latest click wins). Jobs started with
+ * {@link #execute(String, Task)} (edits) are never cancelled, they just wait for their turn. Running jobs are
+ * cancelled cooperatively, they check {@link Job#isCancelled()} between steps. A job can hand independent
+ * work to a helper thread with {@link #fork(Callable)} (e.g. tracking forward and backward at the same time).
+ */
+public class Worker
+{
+	public interface Task
+	{
+		public void run( final Job job );
+	}
+
+	public static class Job
+	{
+		final String name;
+		volatile boolean cancelled = false;
+
+		// for jobs that count their steps from more than one thread
+		final AtomicInteger done = new AtomicInteger();
+		volatile int total = 0;
+
+		public Job( final String name )
+		{
+			this.name = name;
+		}
+
+		public String getName() { return name; }
+		public boolean isCancelled() { return cancelled; }
+		public void cancel() { cancelled = true; }
+
+		/**
+		 * Shows the progress in the status bar of ImageJ.
+		 *
+		 * @param done
+		 * @param total
+		 */
+		public void progress( final int done, final int total )
+		{
+			if ( cancelled )
+				return;
+
+			IJ.showStatus( name + " (" + done + "/" + total + ")" );
+			IJ.showProgress( done, total );
+		}
+
+		/**
+		 * @param total - how many times {@link #step()} will be called
+		 */
+		public void setTotal( final int total ) { this.total = total; }
+
+		/**
+		 * Counts one step and shows the progress, can be called from several threads.
+		 */
+		public void step()
+		{
+			progress( done.incrementAndGet(), total );
+		}
+	}
+
+	final ExecutorService service;
+
+	// runs the parts of a job that are forked, so they never wait for the next job in line
+	final ExecutorService helper;
+
+	// the last job that was submitted and can be replaced by the next one
+	Job replaceable = null;
+
+	public Worker( final String name )
+	{
+		this.service = Executors.newSingleThreadExecutor( r ->
+		{
+			final Thread thread = new Thread( r, name );
+			thread.setDaemon( true );
+			return thread;
+		});
+
+		this.helper = Executors.newCachedThreadPool( r ->
+		{
+			final Thread thread = new Thread( r, name + " helper" );
+			thread.setDaemon( true );
+			return thread;
+		});
+	}
+
+	/**
+	 * Runs a part of the current job on another thread, the job has to wait for the result before it ends.
+	 *
+	 * @param task
+	 * @return - the result
+	 */
+	public < V > Future< V > fork( final Callable< V > task )
+	{
+		return helper.submit( task );
+	}
+
+	/**
+	 * Cancels the previously submitted job and runs this one once the worker is free.
+	 *
+	 * @param name - shown with the progress
+	 * @param task
+	 * @return - the job, to cancel it or to check its state
+	 */
+	public synchronized Job submit( final String name, final Task task )
+	{
+		if ( replaceable != null )
+			replaceable.cancel();
+
+		replaceable = run( name, task );
+
+		return replaceable;
+	}
+
+	/**
+	 * Runs a job once the worker is free, without cancelling anything.
+	 *
+	 * @param name - shown with the progress
+	 * @param task
+	 * @return - the job
+	 */
+	public synchronized Job execute( final String name, final Task task )
+	{
+		return run( name, task );
+	}
+
+	/**
+	 * Cancels the last submitted job.
+	 */
+	public synchronized void cancel()
+	{
+		if ( replaceable != null )
+			replaceable.cancel();
+	}
+
+	/**
+	 * Cancels the last submitted job, jobs that are already waiting still run.
+	 */
+	public void shutdown()
+	{
+		cancel();
+		service.shutdown();
+		helper.shutdown();
+	}
+
+	protected Job run( final String name, final Task task )
+	{
+		final Job job = new Job( name );
+
+		service.execute( () ->
+		{
+			// it was replaced while waiting
+			if ( job.isCancelled() )
+				return;
+
+			try
+			{
+				task.run( job );
+			}
+			catch ( Exception e )
+			{
+				IJ.log( name + " failed: " + e );
+				e.printStackTrace();
+			}
+			finally
+			{
+				if ( job.isCancelled() )
+					IJ.showStatus( name + " cancelled." );
+
+				IJ.showProgress( 1.0 );
+			}
+		});
+
+		return job;
+	}
+}